@@ -0,0 +1,293 @@
+package com.lucidworks.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.analysis.util.ResourceLoader;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.BitDocSet;
+import org.apache.solr.search.DocSlice;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SolrReturnFields;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the documents whose auto phrased output changes when the phrase dictionary changes, so
+ * that only those documents need to be reindexed. The handler loads an old and a new phrase
+ * file, computes the phrases that were added or removed, and runs each changed phrase as a
+ * phrase query against a field holding the same text without auto phrasing. A document can only
+ * be affected if it contains one of the changed phrases.
+ *
+ * Matching documents are collected into a bit set without scoring or caching (one bit per
+ * document of the index). Their unique keys are returned in pages of <code>rows</code> keys in
+ * unique key order, so a response holds at most one page whatever the size of the change. A
+ * full page reports the last key as <code>nextAfter</code>; passing it back as
+ * <code>after</code> returns the next page. Since the cursor is a unique key rather than a
+ * document number, paging stays consistent across commits. Each page runs the phrase queries
+ * again.
+ *
+ * <pre>
+ * &lt;requestHandler name="/autophrase/delta" class="com.lucidworks.analysis.AutoPhraseDeltaHandler"&gt;
+ *   &lt;lst name="defaults"&gt;
+ *     &lt;str name="field"&gt;text_plain&lt;/str&gt;
+ *   &lt;/lst&gt;
+ * &lt;/requestHandler&gt;
+ * </pre>
+ *
+ * Request params: oldPhrases and newPhrases (resource names, required), field (the unphrased
+ * source field, required), ignoreCase (default false), showPhrases (list the changed
+ * phrases in the response, default false), rows (page size, default 1000) and after (the
+ * nextAfter of the previous page). Phrase files are resolved relative to the config
+ * dir; absolute paths and ".." segments are rejected.
+ */
+public class AutoPhraseDeltaHandler extends RequestHandlerBase {
+
+  private static final Logger Log = LoggerFactory.getLogger( AutoPhraseDeltaHandler.class );
+
+  static final int DEFAULT_ROWS = 1000;
+
+  @Override
+  public void handleRequestBody( SolrQueryRequest req, SolrQueryResponse rsp ) throws Exception {
+    SolrParams params = req.getParams( );
+    String oldPhrases = params.required( ).get( "oldPhrases" );
+    String newPhrases = params.required( ).get( "newPhrases" );
+    checkResourceNames( "oldPhrases", oldPhrases );
+    checkResourceNames( "newPhrases", newPhrases );
+    String field = params.required( ).get( "field" );
+    boolean ignoreCase = params.getBool( "ignoreCase", false );
+    int rows = params.getInt( CommonParams.ROWS, DEFAULT_ROWS );
+    if (rows < 0) {
+      throw new SolrException( SolrException.ErrorCode.BAD_REQUEST, "rows must be >= 0" );
+    }
+    String after = params.get( "after" );
+
+    IndexSchema schema = req.getSchema( );
+    SchemaField schemaField = schema.getFieldOrNull( field );
+    if (schemaField == null) {
+      throw new SolrException( SolrException.ErrorCode.BAD_REQUEST, "undefined field: " + field );
+    }
+    SchemaField uniqueKey = schema.getUniqueKeyField( );
+    if (uniqueKey == null) {
+      throw new SolrException( SolrException.ErrorCode.BAD_REQUEST, "the schema has no uniqueKey field" );
+    }
+
+    ResourceLoader loader = req.getCore( ).getResourceLoader( );
+    CharArraySet oldSet = AutoPhraseDictionary.loadPhraseSet( loader, oldPhrases, ignoreCase );
+    CharArraySet newSet = AutoPhraseDictionary.loadPhraseSet( loader, newPhrases, ignoreCase );
+    List<String> added = difference( newSet, oldSet );
+    List<String> removed = difference( oldSet, newSet );
+
+    List<String> changed = new ArrayList<String>( added );
+    changed.addAll( removed );
+    Log.info( "phrase delta: " + added.size( ) + " added, " + removed.size( ) + " removed" );
+
+    SolrIndexSearcher searcher = req.getSearcher( );
+    Analyzer analyzer = schemaField.getType( ).getQueryAnalyzer( );
+    FixedBitSet affected = affectedDocs( searcher, analyzer, field, changed );
+    int numAffected = (int)affected.cardinality( );
+
+    Query afterQuery = after != null ? uniqueKey.getType( ).getRangeQuery( null, uniqueKey, after, null, false, true ) : null;
+    TopDocs page = page( searcher, affected, afterQuery, new Sort( uniqueKey.getSortField( false )), rows );
+    int[] docs = new int[ page.scoreDocs.length ];
+    for (int i = 0; i < docs.length; i++) {
+      docs[i] = page.scoreDocs[i].doc;
+    }
+
+    NamedList<Object> delta = new SimpleOrderedMap<Object>( );
+    delta.add( "added", added.size( ) );
+    delta.add( "removed", removed.size( ) );
+    delta.add( "affectedDocuments", numAffected );
+    if (params.getBool( "showPhrases", false )) {
+      delta.add( "addedPhrases", added );
+      delta.add( "removedPhrases", removed );
+    }
+    if (rows > 0 && docs.length == rows) {
+      Document last = searcher.doc( docs[ docs.length - 1 ], Collections.singleton( uniqueKey.getName( )));
+      delta.add( "nextAfter", uniqueKey.getType( ).toExternal( last.getField( uniqueKey.getName( ))));
+    }
+    rsp.add( "delta", delta );
+
+    // the response writer fetches only the unique key of each document of the page
+    ResultContext result = new ResultContext( );
+    result.docs = new DocSlice( 0, docs.length, docs, null, page.totalHits, 0.0f );
+    rsp.setReturnFields( new SolrReturnFields( uniqueKey.getName( ), req ));
+    rsp.add( "response", result );
+  }
+
+  // The file names come from the request, and the resource loader opens absolute paths and
+  // follows "..", so only names relative to the config dir (or the classpath) are accepted.
+  static void checkResourceNames( String param, String files ) {
+    for (String file : AutoPhraseDictionary.splitFileNames( files )) {
+      boolean rejected = file.length( ) == 0 || file.startsWith( "/" ) || file.startsWith( "\\" )
+                         || file.indexOf( ':' ) >= 0 || new File( file ).isAbsolute( );
+      for (String segment : file.split( "[/\\\\]" )) {
+        if (segment.equals( ".." )) rejected = true;
+      }
+      if (rejected) {
+        throw new SolrException( SolrException.ErrorCode.BAD_REQUEST,
+                                 param + " must name a file in the config dir: " + file );
+      }
+    }
+  }
+
+  /**
+   * @return the documents of the searcher matching any of the phrases in the field
+   */
+  static FixedBitSet affectedDocs( IndexSearcher searcher, Analyzer analyzer, String field, List<String> phrases )
+      throws IOException {
+    FixedBitSet affected = new FixedBitSet( searcher.getIndexReader( ).maxDoc( ));
+    BitSetCollector collector = new BitSetCollector( affected );
+
+    // run the phrases in batches that stay below the boolean clause limit
+    BooleanQuery batch = new BooleanQuery( true );
+    for (String phrase : phrases) {
+      Query query = phraseQuery( analyzer, field, phrase );
+      if (query == null) continue;
+
+      batch.add( query, BooleanClause.Occur.SHOULD );
+      if (batch.clauses( ).size( ) >= BooleanQuery.getMaxClauseCount( )) {
+        searcher.search( batch, collector );
+        batch = new BooleanQuery( true );
+      }
+    }
+    if (batch.clauses( ).size( ) > 0) {
+      searcher.search( batch, collector );
+    }
+    return affected;
+  }
+
+  /**
+   * @return the first <code>rows</code> affected documents in sort order that also match
+   * <code>after</code> (if not null). Only one page of documents is held.
+   */
+  static TopDocs page( IndexSearcher searcher, FixedBitSet affected, Query after, Sort sort, int rows ) throws IOException {
+    Query query = new ConstantScoreQuery( new BitDocSet( affected ).getTopFilter( ));
+    if (after != null) {
+      BooleanQuery paged = new BooleanQuery( true );
+      paged.add( query, BooleanClause.Occur.MUST );
+      paged.add( after, BooleanClause.Occur.MUST );
+      query = paged;
+    }
+    if (rows == 0) {
+      TotalHitCountCollector counter = new TotalHitCountCollector( );
+      searcher.search( query, counter );
+      return new TopDocs( counter.getTotalHits( ), new ScoreDoc[ 0 ], 0.0f );
+    }
+    return searcher.search( query, rows, sort );
+  }
+
+  // Analyzes the phrase with the query analyzer of the source field, keeping positions so
+  // that stop word gaps still line up with the indexed text.
+  private static Query phraseQuery( Analyzer analyzer, String field, String phrase ) throws IOException {
+    PhraseQuery query = new PhraseQuery( );
+    List<Term> terms = new ArrayList<Term>( );
+    TokenStream ts = analyzer.tokenStream( field, phrase );
+    try {
+      CharTermAttribute termAtt = ts.addAttribute( CharTermAttribute.class );
+      PositionIncrementAttribute posIncAtt = ts.addAttribute( PositionIncrementAttribute.class );
+      ts.reset( );
+      int position = -1;
+      while (ts.incrementToken( )) {
+        position += posIncAtt.getPositionIncrement( );
+        Term term = new Term( field, termAtt.toString( ));
+        terms.add( term );
+        query.add( term, Math.max( 0, position ));
+      }
+      ts.end( );
+    }
+    finally {
+      ts.close( );
+    }
+
+    if (terms.isEmpty( )) return null;
+    if (terms.size( ) == 1) return new TermQuery( terms.get( 0 ));
+    return query;
+  }
+
+  static List<String> difference( CharArraySet from, CharArraySet remove ) {
+    List<String> result = new ArrayList<String>( );
+    Iterator<Object> phraseIt = from.iterator( );
+    while (phraseIt.hasNext( )) {
+      char[] phrase = (char[])phraseIt.next( );
+      if (!remove.contains( phrase, 0, phrase.length )) {
+        result.add( new String( phrase ));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String getDescription( ) {
+    return "Finds the documents affected by a change of the auto phrase dictionary";
+  }
+
+  @Override
+  public String getSource( ) {
+    return null;
+  }
+
+  private static class BitSetCollector extends Collector {
+    private final FixedBitSet bits;
+    private int docBase;
+
+    BitSetCollector( FixedBitSet bits ) {
+      this.bits = bits;
+    }
+
+    @Override
+    public void setScorer( Scorer scorer ) {
+    }
+
+    @Override
+    public void collect( int doc ) {
+      bits.set( docBase + doc );
+    }
+
+    @Override
+    public void setNextReader( AtomicReaderContext context ) {
+      docBase = context.docBase;
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder( ) {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,620 @@
+package com.lucidworks.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.lucene.analysis.util.CharArrayMap;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.analysis.util.ResourceLoader;
+import org.apache.lucene.analysis.util.WordlistLoader;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiled form of one or more auto phrase lists. The phrases of every dictionary are merged
+ * into a single token trie so that one walk over the token stream resolves all of them at once,
+ * no matter how many dictionaries are configured.
+ *
+ * Each phrase remembers the {@link Source} it was loaded from. A source carries a name, a
+ * priority and an optional output prefix and token type. When the same phrase is listed in
+ * several dictionaries, the one with the highest priority owns it (ties go to the dictionary
+ * that was added first).
+ *
+ * A dictionary is immutable once built and can be shared between filter instances and threads.
+ */
+public class AutoPhraseDictionary implements Accountable {
+
+  private static final Logger Log = LoggerFactory.getLogger( AutoPhraseDictionary.class );
+
+  static final String CODEC_NAME = "AutoPhraseDictionary";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  public static final float DEFAULT_WEIGHT = 1.0f;
+
+  private final Node root;
+  private final boolean ignoreCase;
+  private final int maxPhraseLength;
+  private final List<Source> sources;
+  private final List<Phrase> phrases;
+  private final CharArraySet tokens;
+
+  private AutoPhraseDictionary( Node root, boolean ignoreCase, int maxPhraseLength,
+                                List<Source> sources, List<Phrase> phrases ) {
+    this.root = root;
+    this.tokens = new CharArraySet( 16, ignoreCase );
+    addTokens( root, tokens );
+    this.ignoreCase = ignoreCase;
+    this.maxPhraseLength = maxPhraseLength;
+    this.sources = Collections.unmodifiableList( sources );
+    this.phrases = Collections.unmodifiableList( phrases );
+  }
+
+  /**
+   * Builds a dictionary holding a single unnamed phrase list.
+   */
+  public static AutoPhraseDictionary fromPhraseSet( CharArraySet phraseSet, boolean ignoreCase ) {
+    return new Builder( ignoreCase ).add( new Source( "default", 0, null, null ), phraseSet ).build( );
+  }
+
+  public Node getRoot( ) {
+    return root;
+  }
+
+  /**
+   * Follows the edge for the given token from <code>node</code>.
+   * @return the child node, or null if no phrase continues with this token
+   */
+  public Node next( Node node, char[] token, int offset, int length ) {
+    if (node.children == null) return null;
+    return node.children.get( token, offset, length );
+  }
+
+  /**
+   * @return true if the token starts at least one phrase
+   */
+  public boolean isPhraseStart( char[] token, int offset, int length ) {
+    return next( root, token, offset, length ) != null;
+  }
+
+  /**
+   * @return true if the token occurs anywhere in a phrase. No phrase can span a token for which
+   * this is false.
+   */
+  public boolean isPhraseToken( char[] token, int offset, int length ) {
+    return tokens.contains( token, offset, length );
+  }
+
+  private static void addTokens( Node node, CharArraySet tokens ) {
+    if (node.children == null) return;
+    Iterator<Object> keyIt = node.children.keySet( ).iterator( );
+    while (keyIt.hasNext( )) {
+      tokens.add( keyIt.next( ) );
+    }
+    for (Node child : node.children.values( )) {
+      addTokens( child, tokens );
+    }
+  }
+
+  public boolean isIgnoreCase( ) {
+    return ignoreCase;
+  }
+
+  /**
+   * @return the number of tokens in the longest phrase
+   */
+  public int getMaxPhraseLength( ) {
+    return maxPhraseLength;
+  }
+
+  public List<Source> getSources( ) {
+    return sources;
+  }
+
+  public List<Phrase> getPhrases( ) {
+    return phrases;
+  }
+
+  public int size( ) {
+    return phrases.size( );
+  }
+
+  /**
+   * @return an estimate of the heap used by the trie and its phrases, not counting the sorted
+   * edges that fuzzy matching builds on first use
+   */
+  @Override
+  public long ramBytesUsed( ) {
+    long bytes = RamUsageEstimator.shallowSizeOfInstance( AutoPhraseDictionary.class );
+    for (Phrase phrase : phrases) {
+      bytes += RamUsageEstimator.shallowSizeOfInstance( Phrase.class ) + RamUsageEstimator.sizeOf( phrase.getText( ) )
+             + RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+    }
+    return bytes + ramBytesUsed( root ) + ramBytesUsed( tokens );
+  }
+
+  private static long ramBytesUsed( Node node ) {
+    long bytes = RamUsageEstimator.shallowSizeOfInstance( Node.class );
+    if (node.children != null) {
+      bytes += ramBytesUsed( node.children.keySet( ) );
+      for (Node child : node.children.values( )) {
+        bytes += RamUsageEstimator.NUM_BYTES_OBJECT_REF * 2 + ramBytesUsed( child );
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * @return an estimate of the heap used by a phrase set: the phrase texts and the hash table
+   * slots of its map, which is kept at most half full
+   */
+  static long ramBytesUsed( CharArraySet phraseSet ) {
+    long bytes = RamUsageEstimator.shallowSizeOfInstance( CharArraySet.class ) + 2 * RamUsageEstimator.NUM_BYTES_ARRAY_HEADER;
+    Iterator<Object> phraseIt = phraseSet.iterator( );
+    while (phraseIt.hasNext( )) {
+      bytes += RamUsageEstimator.sizeOf( (char[])phraseIt.next( ) ) + RamUsageEstimator.NUM_BYTES_OBJECT_REF * 4;
+    }
+    return bytes;
+  }
+
+  /**
+   * Writes the dictionary in its compiled form: the sources and the weighted phrases, behind a
+   * versioned header. {@link #read} rebuilds the dictionary without parsing phrase files.
+   */
+  public void write( OutputStream out ) throws IOException {
+    DataOutput output = new OutputStreamDataOutput( out );
+    CodecUtil.writeHeader( output, CODEC_NAME, VERSION_CURRENT );
+    output.writeByte( (byte)(ignoreCase ? 1 : 0) );
+
+    output.writeVInt( sources.size( ) );
+    for (Source source : sources) {
+      output.writeString( source.getName( ) );
+      output.writeInt( source.getPriority( ) );
+      writeOptionalString( output, source.getOutputPrefix( ) );
+      writeOptionalString( output, source.getType( ) );
+    }
+
+    output.writeVInt( phrases.size( ) );
+    for (Phrase phrase : phrases) {
+      output.writeVInt( sources.indexOf( phrase.getSource( ) ) );
+      output.writeString( new String( phrase.getText( ) ) );
+      output.writeInt( Float.floatToIntBits( phrase.getWeight( ) ) );
+    }
+  }
+
+  /**
+   * Reads a dictionary written by {@link #write}.
+   */
+  public static AutoPhraseDictionary read( InputStream in ) throws IOException {
+    DataInput input = new InputStreamDataInput( in );
+    CodecUtil.checkHeader( input, CODEC_NAME, VERSION_START, VERSION_CURRENT );
+    Builder builder = new Builder( input.readByte( ) == 1 );
+
+    int numSources = input.readVInt( );
+    Source[] sources = new Source[ numSources ];
+    for (int i = 0; i < numSources; i++) {
+      String name = input.readString( );
+      int priority = input.readInt( );
+      sources[i] = new Source( name, priority, readOptionalString( input ), readOptionalString( input ) );
+      builder.addSource( sources[i] );
+    }
+
+    int numPhrases = input.readVInt( );
+    for (int i = 0; i < numPhrases; i++) {
+      Source source = sources[ input.readVInt( ) ];
+      String phrase = input.readString( );
+      builder.add( source, phrase, Float.intBitsToFloat( input.readInt( ) ) );
+    }
+    return builder.build( );
+  }
+
+  /**
+   * @return true if the stream starts with the header written by {@link #write}. The stream must
+   * support mark and reset; it is left at its original position.
+   */
+  public static boolean isCompiled( InputStream in ) throws IOException {
+    in.mark( 4 );
+    try {
+      int magic = 0;
+      for (int i = 0; i < 4; i++) {
+        int b = in.read( );
+        if (b == -1) return false;
+        magic = (magic << 8) | b;
+      }
+      return magic == CodecUtil.CODEC_MAGIC;
+    }
+    finally {
+      in.reset( );
+    }
+  }
+
+  /**
+   * Loads a comma separated list of phrase files into a single set. Each file is either a plain
+   * phrase list with one phrase per line, or a compiled dictionary written by {@link #write}.
+   */
+  public static CharArraySet loadPhraseSet( ResourceLoader loader, String files, boolean ignoreCase ) throws IOException {
+    CharArraySet phrases = new CharArraySet( 100, ignoreCase );
+    for (String file : splitFileNames( files )) {
+      InputStream in = new BufferedInputStream( loader.openResource( file ));
+      try {
+        if (isCompiled( in )) {
+          for (Phrase phrase : read( in ).getPhrases( )) {
+            phrases.add( phrase.getText( ) );
+          }
+        }
+        else {
+          phrases.addAll( WordlistLoader.getLines( in, StandardCharsets.UTF_8 ));
+        }
+      }
+      finally {
+        in.close( );
+      }
+    }
+    return phrases;
+  }
+
+  /**
+   * Loads a comma separated list of plain or compiled phrase files into a single dictionary.
+   * Weights of compiled dictionaries are kept; phrases of plain files get the default weight.
+   */
+  public static AutoPhraseDictionary load( ResourceLoader loader, String files, boolean ignoreCase ) throws IOException {
+    Builder builder = new Builder( ignoreCase );
+    Source source = new Source( "default", 0, null, null );
+    for (String file : splitFileNames( files )) {
+      InputStream in = new BufferedInputStream( loader.openResource( file ));
+      try {
+        if (isCompiled( in )) {
+          for (Phrase phrase : read( in ).getPhrases( )) {
+            builder.add( source, new String( phrase.getText( ) ), phrase.getWeight( ) );
+          }
+        }
+        else {
+          builder.add( source, WordlistLoader.getLines( in, StandardCharsets.UTF_8 ));
+        }
+      }
+      finally {
+        in.close( );
+      }
+    }
+    return builder.build( );
+  }
+
+  // file names are separated by commas; a comma that is part of a name is escaped as \,
+  static List<String> splitFileNames( String files ) {
+    List<String> result = new ArrayList<String>( );
+    for (String file : files.split( "(?<!\\\\)," )) {
+      result.add( file.trim( ).replaceAll( "\\\\(?=,)", "" ));
+    }
+    return result;
+  }
+
+  private static void writeOptionalString( DataOutput output, String value ) throws IOException {
+    output.writeByte( (byte)(value == null ? 0 : 1) );
+    if (value != null) output.writeString( value );
+  }
+
+  private static String readOptionalString( DataInput input ) throws IOException {
+    return input.readByte( ) == 0 ? null : input.readString( );
+  }
+
+  /**
+   * A named phrase list together with the rules used when its phrases are emitted.
+   */
+  public static class Source {
+    private final String name;
+    private final int priority;
+    private final String outputPrefix;
+    private final String type;
+
+    /**
+     * @param name name of the dictionary
+     * @param priority higher values win when phrases from different dictionaries overlap
+     * @param outputPrefix prepended to every phrase token emitted for this dictionary, may be null
+     * @param type token type set on every phrase token emitted for this dictionary, may be null
+     */
+    public Source( String name, int priority, String outputPrefix, String type ) {
+      this.name = name;
+      this.priority = priority;
+      this.outputPrefix = outputPrefix;
+      this.type = type;
+    }
+
+    public String getName( ) {
+      return name;
+    }
+
+    public int getPriority( ) {
+      return priority;
+    }
+
+    public String getOutputPrefix( ) {
+      return outputPrefix;
+    }
+
+    public String getType( ) {
+      return type;
+    }
+
+    @Override
+    public String toString( ) {
+      return name + "(priority=" + priority + ")";
+    }
+  }
+
+  /**
+   * A single phrase of the dictionary.
+   */
+  public static class Phrase {
+    private final char[] text;
+    private final int length;
+    private final Source source;
+    private final float weight;
+
+    Phrase( char[] text, int length, Source source, float weight ) {
+      this.text = text;
+      this.length = length;
+      this.source = source;
+      this.weight = weight;
+    }
+
+    /**
+     * @return the phrase terms separated by a single space
+     */
+    public char[] getText( ) {
+      return text;
+    }
+
+    /**
+     * @return the number of tokens in the phrase
+     */
+    public int getLength( ) {
+      return length;
+    }
+
+    public Source getSource( ) {
+      return source;
+    }
+
+    public int getPriority( ) {
+      return source.getPriority( );
+    }
+
+    /**
+     * @return the weight of the phrase, 1 unless the phrase list supplied one
+     */
+    public float getWeight( ) {
+      return weight;
+    }
+
+    @Override
+    public String toString( ) {
+      return new String( text );
+    }
+  }
+
+  /**
+   * A node of the token trie. The path from the root to a node spells the tokens of a phrase
+   * prefix; if that prefix is a complete phrase, {@link #getPhrase()} returns it.
+   */
+  public static class Node {
+    private CharArrayMap<Node> children;
+    private Phrase phrase;
+    private float maxWeight;
+    private volatile Edges sortedEdges;
+
+    public Phrase getPhrase( ) {
+      return phrase;
+    }
+
+    public boolean isLeaf( ) {
+      return children == null;
+    }
+
+    /**
+     * @return the highest weight of the phrases at or below this node
+     */
+    float getMaxWeight( ) {
+      return maxWeight;
+    }
+
+    /**
+     * @return the outgoing edges of this node sorted by token. They are built on first use,
+     * so dictionaries that are only used for exact lookups do not pay for them.
+     */
+    Edges getSortedEdges( ) {
+      Edges edges = sortedEdges;
+      if (edges == null) {
+        edges = new Edges( children );
+        sortedEdges = edges;
+      }
+      return edges;
+    }
+  }
+
+  /**
+   * The outgoing edges of a {@link Node} in token order, so that they can be intersected with
+   * an automaton or searched by prefix without visiting every child.
+   */
+  static class Edges {
+    final char[][] tokens;
+    final Node[] targets;
+
+    Edges( CharArrayMap<Node> children ) {
+      int size = children == null ? 0 : children.size( );
+      tokens = new char[ size ][];
+      targets = new Node[ size ];
+      if (size == 0) return;
+
+      Iterator<Object> keyIt = children.keySet( ).iterator( );
+      for (int i = 0; keyIt.hasNext( ); i++) {
+        tokens[i] = (char[])keyIt.next( );
+      }
+      Arrays.sort( tokens, TOKEN_ORDER );
+      for (int i = 0; i < size; i++) {
+        targets[i] = children.get( tokens[i], 0, tokens[i].length );
+      }
+    }
+
+    int size( ) {
+      return tokens.length;
+    }
+  }
+
+  static final Comparator<char[]> TOKEN_ORDER = new Comparator<char[]>( ) {
+    @Override
+    public int compare( char[] a, char[] b ) {
+      int len = Math.min( a.length, b.length );
+      for (int i = 0; i < len; i++) {
+        if (a[i] != b[i]) return a[i] - b[i];
+      }
+      return a.length - b.length;
+    }
+  };
+
+  /**
+   * Collects phrase lists and compiles them into an {@link AutoPhraseDictionary}.
+   */
+  public static class Builder {
+    private final boolean ignoreCase;
+    private final Node root = new Node( );
+    private final List<Source> sources = new ArrayList<Source>( );
+    private final List<Phrase> phrases = new ArrayList<Phrase>( );
+    private int maxPhraseLength = 0;
+
+    public Builder( boolean ignoreCase ) {
+      this.ignoreCase = ignoreCase;
+    }
+
+    public Builder add( Source source, CharArraySet phraseSet ) {
+      addSource( source );
+      if (phraseSet == null) return this;
+
+      Iterator<Object> phraseIt = phraseSet.iterator( );
+      while (phraseIt.hasNext( )) {
+        addPhrase( source, (char[])phraseIt.next( ), DEFAULT_WEIGHT );
+      }
+      return this;
+    }
+
+    public Builder add( Source source, Iterable<String> phraseList ) {
+      addSource( source );
+      for (String phrase : phraseList) {
+        addPhrase( source, phrase.toCharArray( ), DEFAULT_WEIGHT );
+      }
+      return this;
+    }
+
+    /**
+     * Adds a single weighted phrase to the dictionary of <code>source</code>.
+     */
+    public Builder add( Source source, String phrase, float weight ) {
+      addSource( source );
+      addPhrase( source, phrase.toCharArray( ), weight );
+      return this;
+    }
+
+    private void addSource( Source source ) {
+      for (Source known : sources) {
+        if (known == source) return;
+      }
+      sources.add( source );
+    }
+
+    private void addPhrase( Source source, char[] phrase, float weight ) {
+      List<char[]> terms = splitTerms( phrase );
+      if (terms.isEmpty( )) return;
+
+      Node node = root;
+      for (char[] term : terms) {
+        if (node.children == null) {
+          node.children = new CharArrayMap<Node>( 4, ignoreCase );
+        }
+        Node child = node.children.get( term, 0, term.length );
+        if (child == null) {
+          child = new Node( );
+          node.children.put( term, child );
+        }
+        node = child;
+      }
+
+      if (node.phrase != null) {
+        if (node.phrase.getPriority( ) >= source.getPriority( )) {
+          Log.debug( "'" + new String( phrase ) + "' already defined by " + node.phrase.getSource( ) );
+          return;
+        }
+        phrases.remove( node.phrase );
+      }
+
+      node.phrase = new Phrase( joinTerms( terms ), terms.size( ), source, weight );
+      phrases.add( node.phrase );
+      maxPhraseLength = Math.max( maxPhraseLength, terms.size( ) );
+    }
+
+    public AutoPhraseDictionary build( ) {
+      updateMaxWeight( root );
+      return new AutoPhraseDictionary( root, ignoreCase, maxPhraseLength,
+                                       new ArrayList<Source>( sources ), new ArrayList<Phrase>( phrases ) );
+    }
+  }
+
+  private static float updateMaxWeight( Node node ) {
+    float maxWeight = node.phrase != null ? node.phrase.getWeight( ) : Float.NEGATIVE_INFINITY;
+    if (node.children != null) {
+      for (Node child : node.children.values( )) {
+        maxWeight = Math.max( maxWeight, updateMaxWeight( child ));
+      }
+    }
+    node.maxWeight = maxWeight;
+    return maxWeight;
+  }
+
+  static List<char[]> splitTerms( char[] phrase ) {
+    List<char[]> terms = new ArrayList<char[]>( );
+    int start = -1;
+    for (int i = 0; i <= phrase.length; i++) {
+      if (i == phrase.length || isSpaceChar( phrase[i] )) {
+        if (start >= 0) {
+          char[] term = new char[ i - start ];
+          System.arraycopy( phrase, start, term, 0, term.length );
+          terms.add( term );
+          start = -1;
+        }
+      }
+      else if (start < 0) {
+        start = i;
+      }
+    }
+    return terms;
+  }
+
+  private static char[] joinTerms( List<char[]> terms ) {
+    StringBuilder sb = new StringBuilder( );
+    for (char[] term : terms) {
+      if (sb.length( ) > 0) sb.append( ' ' );
+      sb.append( term );
+    }
+    char[] joined = new char[ sb.length( ) ];
+    sb.getChars( 0, sb.length( ), joined, 0 );
+    return joined;
+  }
+
+  static boolean isSpaceChar( char ch ) {
+    return " \t\n\r".indexOf( ch ) >= 0;
+  }
+}
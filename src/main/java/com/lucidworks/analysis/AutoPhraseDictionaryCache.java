@@ -0,0 +1,107 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds named dictionaries that are loaded on first use and evicted, least recently used first,
+ * when their estimated heap size exceeds a budget. A cache hit is a single concurrent map lookup
+ * plus a volatile write of the access time; loading and eviction are serialized and only happen
+ * on a miss.
+ *
+ * The entry that was just loaded is never evicted, so a single dictionary larger than the
+ * budget is still served.
+ */
+public class AutoPhraseDictionaryCache<V extends Accountable> {
+
+  private static final Logger Log = LoggerFactory.getLogger( AutoPhraseDictionaryCache.class );
+
+  /**
+   * Loads the dictionary registered under a name.
+   */
+  public interface Loader<V> {
+    V load( String name ) throws IOException;
+  }
+
+  private final ConcurrentHashMap<String,Entry<V>> entries = new ConcurrentHashMap<String,Entry<V>>( );
+  private final AtomicLong clock = new AtomicLong( );
+  private final Loader<V> loader;
+  private final long maxRamBytes;
+  private long ramBytesUsed;  // guarded by this
+
+  public AutoPhraseDictionaryCache( Loader<V> loader, long maxRamBytes ) {
+    this.loader = loader;
+    this.maxRamBytes = maxRamBytes;
+  }
+
+  public V get( String name ) throws IOException {
+    Entry<V> entry = entries.get( name );
+    if (entry == null) {
+      entry = load( name );
+    }
+    entry.lastUsed = clock.incrementAndGet( );
+    return entry.value;
+  }
+
+  private synchronized Entry<V> load( String name ) throws IOException {
+    Entry<V> entry = entries.get( name );
+    if (entry != null) return entry;
+
+    V value = loader.load( name );
+    entry = new Entry<V>( value, value.ramBytesUsed( ));
+    entry.lastUsed = clock.incrementAndGet( );
+    ramBytesUsed += entry.ramBytes;
+
+    while (ramBytesUsed > maxRamBytes && !entries.isEmpty( )) {
+      evictLeastRecentlyUsed( );
+    }
+    entries.put( name, entry );
+    Log.info( "loaded dictionary '" + name + "' (" + RamUsageEstimator.humanReadableUnits( entry.ramBytes ) + "), cache holds "
+              + entries.size( ) + " dictionaries, " + RamUsageEstimator.humanReadableUnits( ramBytesUsed ) );
+    return entry;
+  }
+
+  private void evictLeastRecentlyUsed( ) {
+    String eldest = null;
+    long eldestUse = Long.MAX_VALUE;
+    for (Map.Entry<String,Entry<V>> entry : entries.entrySet( )) {
+      if (entry.getValue( ).lastUsed < eldestUse) {
+        eldest = entry.getKey( );
+        eldestUse = entry.getValue( ).lastUsed;
+      }
+    }
+    Entry<V> evicted = entries.remove( eldest );
+    ramBytesUsed -= evicted.ramBytes;
+    Log.info( "evicted dictionary '" + eldest + "'" );
+  }
+
+  public boolean contains( String name ) {
+    return entries.containsKey( name );
+  }
+
+  public int size( ) {
+    return entries.size( );
+  }
+
+  public synchronized long ramBytesUsed( ) {
+    return ramBytesUsed;
+  }
+
+  private static class Entry<V> {
+    final V value;
+    final long ramBytes;
+    volatile long lastUsed;
+
+    Entry( V value, long ramBytes ) {
+      this.value = value;
+      this.ramBytes = ramBytes;
+    }
+  }
+}
@@ -0,0 +1,727 @@
+package com.lucidworks.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.core.SolrResourceLoader;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.IndexSchemaFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Mines candidate auto phrases from an existing index. Every n-gram of 2 to maxN tokens is
+ * counted, and each candidate is scored against the frequency of its prefix and of its last
+ * token with pointwise mutual information and Dunning's log likelihood ratio. Candidates that
+ * pass the count and score thresholds are written as a tab separated report, as a plain
+ * <code>phrases</code> file, or as a compiled {@link AutoPhraseDictionary} that both
+ * AutoPhrasingTokenFilterFactory and AutoPhrasingQParserPlugin load directly.
+ *
+ * Token sequences are rebuilt from term vectors with positions when the field has them, and
+ * otherwise by analyzing the stored text field again. A position gap (a removed stop word, or
+ * the boundary between two values of a multi valued field) ends an n-gram.
+ *
+ * Segments are counted in parallel. Each counting task keeps at most maxEntries n-grams in
+ * memory and spills them to a sorted run file when the map is full; the runs are then merged
+ * into a single sorted stream of summed counts. Since the merged stream is sorted, the count of
+ * an n-gram's prefix has always been seen just before it and only a stack of maxN entries is
+ * needed to score it. Token frequencies and the total token count come from the index
+ * statistics of the field, so heap use does not grow with the size of the index.
+ *
+ * <pre>
+ * java com.lucidworks.analysis.AutoPhraseMiner -index /path/to/index -field text -format phrases -output autophrases.txt
+ * </pre>
+ */
+public class AutoPhraseMiner {
+
+  private static final Logger Log = LoggerFactory.getLogger( AutoPhraseMiner.class );
+
+  // number of run files merged at once; more runs are merged in several passes
+  private static final int MERGE_FACTOR = 64;
+
+  public enum Weight { COUNT, PMI, LLR }
+
+  public enum Format { TSV, PHRASES, COMPILED }
+
+  private final String field;
+  private String textField;
+  private Analyzer analyzer;
+  private int maxN = 3;
+  private long minCount = 5;
+  private double minPmi = 0.0;
+  private double minLlr = 10.83;
+  private int top = 0;
+  private Weight weight = Weight.LLR;
+  private int threads = Runtime.getRuntime( ).availableProcessors( );
+  private int maxEntries = 1000000;
+  private File tmpDir = new File( System.getProperty( "java.io.tmpdir" ));
+
+  public AutoPhraseMiner( String field ) {
+    this.field = field;
+    this.textField = field;
+  }
+
+  /**
+   * Stored field analyzed for documents without term vectors. Defaults to the mined field.
+   */
+  public void setTextField( String textField ) {
+    this.textField = textField;
+  }
+
+  /**
+   * Analyzer used for the stored text field. It should produce the same tokens as the analyzer
+   * of the mined field, whose statistics are used for scoring. Defaults to a StandardAnalyzer
+   * that keeps stop words.
+   */
+  public void setAnalyzer( Analyzer analyzer ) {
+    this.analyzer = analyzer;
+  }
+
+  public void setMaxN( int maxN ) {
+    if (maxN < 2) throw new IllegalArgumentException( "maxN must be at least 2" );
+    this.maxN = maxN;
+  }
+
+  public void setMinCount( long minCount ) {
+    this.minCount = minCount;
+  }
+
+  public void setMinPmi( double minPmi ) {
+    this.minPmi = minPmi;
+  }
+
+  public void setMinLlr( double minLlr ) {
+    this.minLlr = minLlr;
+  }
+
+  /**
+   * Keeps only the <code>top</code> candidates with the highest weight. With 0, every candidate
+   * is streamed out in phrase order as soon as it is scored.
+   */
+  public void setTop( int top ) {
+    this.top = top;
+  }
+
+  public void setWeight( Weight weight ) {
+    this.weight = weight;
+  }
+
+  public void setThreads( int threads ) {
+    this.threads = Math.max( 1, threads );
+  }
+
+  /**
+   * Maximum number of distinct n-grams a counting task holds in memory before it spills.
+   */
+  public void setMaxEntries( int maxEntries ) {
+    this.maxEntries = Math.max( 1, maxEntries );
+  }
+
+  public void setTmpDir( File tmpDir ) {
+    this.tmpDir = tmpDir;
+  }
+
+  /**
+   * Mines the index and passes every accepted candidate to <code>output</code>.
+   */
+  public void mine( IndexReader reader, CandidateOutput output ) throws IOException {
+    final long totalTokens = reader.getSumTotalTermFreq( field );
+    if (totalTokens <= 0) {
+      throw new IllegalArgumentException( "field '" + field + "' has no term frequencies in this index" );
+    }
+    if (analyzer == null) {
+      analyzer = new StandardAnalyzer( CharArraySet.EMPTY_SET );
+    }
+
+    long start = System.currentTimeMillis( );
+    List<File> runs = count( reader );
+    Log.info( "counted " + reader.numDocs( ) + " documents into " + runs.size( ) + " runs in "
+              + (System.currentTimeMillis( ) - start) + "ms" );
+
+    try {
+      while (runs.size( ) > MERGE_FACTOR) {
+        runs = mergePass( runs );
+      }
+
+      Scorer scorer = new Scorer( reader, totalTokens, output );
+      merge( runs, scorer );
+      scorer.finish( );
+    }
+    finally {
+      for (File run : runs) {
+        run.delete( );
+      }
+    }
+    Log.info( "mined " + reader.numDocs( ) + " documents in " + (System.currentTimeMillis( ) - start) + "ms" );
+  }
+
+  // Counts the n-grams of every segment on its own thread, returning the sorted run files.
+  private List<File> count( IndexReader reader ) throws IOException {
+    final List<File> runs = Collections.synchronizedList( new ArrayList<File>( ));
+    ExecutorService executor = Executors.newFixedThreadPool( threads );
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>( );
+      for (final AtomicReaderContext leaf : reader.leaves( )) {
+        futures.add( executor.submit( new Callable<Void>( ) {
+          @Override
+          public Void call( ) throws IOException {
+            countSegment( leaf.reader( ), runs );
+            return null;
+          }
+        } ));
+      }
+      for (Future<?> future : futures) {
+        future.get( );
+      }
+    }
+    catch (InterruptedException ie) {
+      Thread.currentThread( ).interrupt( );
+      throw new IOException( ie );
+    }
+    catch (ExecutionException ee) {
+      for (File run : runs) {
+        run.delete( );
+      }
+      if (ee.getCause( ) instanceof IOException) throw (IOException)ee.getCause( );
+      throw new RuntimeException( ee.getCause( ));
+    }
+    finally {
+      executor.shutdownNow( );
+    }
+    return new ArrayList<File>( runs );
+  }
+
+  private void countSegment( AtomicReader reader, List<File> runs ) throws IOException {
+    Map<String,long[]> counts = new HashMap<String,long[]>( );
+    List<String> tokens = new ArrayList<String>( );
+    Bits liveDocs = reader.getLiveDocs( );
+
+    for (int doc = 0; doc < reader.maxDoc( ); doc++) {
+      if (liveDocs != null && !liveDocs.get( doc )) continue;
+
+      tokens.clear( );
+      readTokens( reader, doc, tokens );
+
+      for (int i = 0; i < tokens.size( ); i++) {
+        if (tokens.get( i ) == null) continue;
+        StringBuilder ngram = new StringBuilder( tokens.get( i ));
+        for (int n = 2; n <= maxN && i + n - 1 < tokens.size( ); n++) {
+          String token = tokens.get( i + n - 1 );
+          if (token == null) break;
+          ngram.append( ' ' ).append( token );
+
+          String key = ngram.toString( );
+          long[] count = counts.get( key );
+          if (count == null) {
+            counts.put( key, new long[] { 1 } );
+          }
+          else {
+            count[0]++;
+          }
+        }
+      }
+
+      if (counts.size( ) >= maxEntries) {
+        runs.add( spill( counts ));
+        counts.clear( );
+      }
+    }
+
+    if (!counts.isEmpty( )) {
+      runs.add( spill( counts ));
+    }
+  }
+
+  // Fills tokens with the tokens of the document indexed by position; gaps are left null.
+  private void readTokens( AtomicReader reader, int doc, List<String> tokens ) throws IOException {
+    Terms vector = reader.getTermVector( doc, field );
+    if (vector != null && vector.hasPositions( )) {
+      TermsEnum termsEnum = vector.iterator( null );
+      DocsAndPositionsEnum positions = null;
+      BytesRef term;
+      while ((term = termsEnum.next( )) != null) {
+        String token = term.utf8ToString( );
+        positions = termsEnum.docsAndPositions( null, positions );
+        positions.nextDoc( );
+        for (int i = 0; i < positions.freq( ); i++) {
+          setToken( tokens, positions.nextPosition( ), token );
+        }
+      }
+      return;
+    }
+
+    Document document = reader.document( doc, Collections.singleton( textField ));
+    for (String value : document.getValues( textField )) {
+      // keep a gap between two values so that no n-gram spans them
+      int position = tokens.size( );
+      TokenStream ts = analyzer.tokenStream( field, value );
+      try {
+        CharTermAttribute termAtt = ts.addAttribute( CharTermAttribute.class );
+        PositionIncrementAttribute posIncAtt = ts.addAttribute( PositionIncrementAttribute.class );
+        ts.reset( );
+        while (ts.incrementToken( )) {
+          position += posIncAtt.getPositionIncrement( );
+          setToken( tokens, position, termAtt.toString( ));
+        }
+        ts.end( );
+      }
+      finally {
+        ts.close( );
+      }
+    }
+  }
+
+  private void setToken( List<String> tokens, int position, String token ) {
+    if (position < 0) return;
+    while (tokens.size( ) <= position) {
+      tokens.add( null );
+    }
+    tokens.set( position, token );
+  }
+
+  private File spill( Map<String,long[]> counts ) throws IOException {
+    List<String> keys = new ArrayList<String>( counts.keySet( ));
+    Collections.sort( keys );
+
+    File run = File.createTempFile( "autophrase", ".run", tmpDir );
+    RunWriter writer = new RunWriter( run );
+    try {
+      for (String key : keys) {
+        writer.add( key, counts.get( key )[0] );
+      }
+    }
+    finally {
+      writer.close( );
+    }
+    Log.debug( "spilled " + keys.size( ) + " n-grams to " + run );
+    return run;
+  }
+
+  private List<File> mergePass( List<File> runs ) throws IOException {
+    List<File> merged = new ArrayList<File>( );
+    for (int i = 0; i < runs.size( ); i += MERGE_FACTOR) {
+      List<File> group = runs.subList( i, Math.min( runs.size( ), i + MERGE_FACTOR ));
+      File run = File.createTempFile( "autophrase", ".run", tmpDir );
+      RunWriter writer = new RunWriter( run );
+      try {
+        merge( group, writer );
+      }
+      finally {
+        writer.close( );
+      }
+      for (File input : group) {
+        input.delete( );
+      }
+      merged.add( run );
+    }
+    return merged;
+  }
+
+  // Merges sorted runs into one sorted stream, summing the counts of equal n-grams.
+  private void merge( List<File> runs, CountSink sink ) throws IOException {
+    PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>( Math.max( 1, runs.size( )));
+    try {
+      for (File run : runs) {
+        RunReader reader = new RunReader( run );
+        if (reader.next( )) {
+          queue.add( reader );
+        }
+        else {
+          reader.close( );
+        }
+      }
+
+      while (!queue.isEmpty( )) {
+        RunReader head = queue.poll( );
+        String key = head.key;
+        long count = head.count;
+        advance( head, queue );
+
+        while (!queue.isEmpty( ) && queue.peek( ).key.equals( key )) {
+          RunReader same = queue.poll( );
+          count += same.count;
+          advance( same, queue );
+        }
+        sink.add( key, count );
+      }
+    }
+    finally {
+      for (RunReader reader : queue) {
+        reader.close( );
+      }
+    }
+  }
+
+  private void advance( RunReader reader, PriorityQueue<RunReader> queue ) throws IOException {
+    if (reader.next( )) {
+      queue.add( reader );
+    }
+    else {
+      reader.close( );
+    }
+  }
+
+  static double pmi( long ngramCount, long prefixCount, long lastCount, long totalTokens ) {
+    return Math.log( (double)ngramCount * totalTokens / ((double)prefixCount * lastCount) ) / Math.log( 2 );
+  }
+
+  // Dunning's log likelihood ratio of the 2x2 contingency table of prefix and last token
+  static double llr( long ngramCount, long prefixCount, long lastCount, long totalTokens ) {
+    long k11 = ngramCount;
+    long k12 = Math.max( 0, prefixCount - ngramCount );
+    long k21 = Math.max( 0, lastCount - ngramCount );
+    long k22 = Math.max( 0, totalTokens - prefixCount - lastCount + ngramCount );
+
+    double rowEntropy = entropy( k11 + k12, k21 + k22 );
+    double columnEntropy = entropy( k11 + k21, k12 + k22 );
+    double matrixEntropy = entropy( k11, k12, k21, k22 );
+    if (rowEntropy + columnEntropy < matrixEntropy) return 0.0;
+    return 2.0 * (rowEntropy + columnEntropy - matrixEntropy);
+  }
+
+  private static double entropy( long... counts ) {
+    long sum = 0;
+    double result = 0.0;
+    for (long count : counts) {
+      result += xLogX( count );
+      sum += count;
+    }
+    return xLogX( sum ) - result;
+  }
+
+  private static double xLogX( long x ) {
+    return x == 0 ? 0.0 : x * Math.log( x );
+  }
+
+  /**
+   * A scored phrase candidate.
+   */
+  public static class Candidate {
+    private final String phrase;
+    private final long count;
+    private final double pmi;
+    private final double llr;
+    private final float weight;
+
+    Candidate( String phrase, long count, double pmi, double llr, float weight ) {
+      this.phrase = phrase;
+      this.count = count;
+      this.pmi = pmi;
+      this.llr = llr;
+      this.weight = weight;
+    }
+
+    public String getPhrase( ) {
+      return phrase;
+    }
+
+    public long getCount( ) {
+      return count;
+    }
+
+    public double getPmi( ) {
+      return pmi;
+    }
+
+    public double getLlr( ) {
+      return llr;
+    }
+
+    public float getWeight( ) {
+      return weight;
+    }
+
+    @Override
+    public String toString( ) {
+      return phrase + "\t" + count + "\t" + pmi + "\t" + llr;
+    }
+  }
+
+  /**
+   * Receives the accepted candidates.
+   */
+  public interface CandidateOutput {
+    void add( Candidate candidate ) throws IOException;
+  }
+
+  private interface CountSink {
+    void add( String ngram, long count ) throws IOException;
+  }
+
+  // Scores the merged, sorted n-gram stream. The stack holds the chain of n-grams that are
+  // prefixes of the current one, so the count of an n-gram's prefix is on top of it.
+  private class Scorer implements CountSink {
+    private final IndexReader reader;
+    private final long totalTokens;
+    private final CandidateOutput output;
+    private final String[] stackKeys = new String[ maxN ];
+    private final long[] stackCounts = new long[ maxN ];
+    private int stackSize = 0;
+    private final PriorityQueue<Candidate> best;
+
+    Scorer( IndexReader reader, long totalTokens, CandidateOutput output ) {
+      this.reader = reader;
+      this.totalTokens = totalTokens;
+      this.output = output;
+      this.best = top > 0 ? new PriorityQueue<Candidate>( top, new Comparator<Candidate>( ) {
+        @Override
+        public int compare( Candidate a, Candidate b ) {
+          return Float.compare( a.getWeight( ), b.getWeight( ) );
+        }
+      } ) : null;
+    }
+
+    @Override
+    public void add( String ngram, long count ) throws IOException {
+      while (stackSize > 0 && !isPrefix( stackKeys[ stackSize - 1 ], ngram )) {
+        stackSize--;
+      }
+
+      int split = ngram.lastIndexOf( ' ' );
+      String prefix = ngram.substring( 0, split );
+      long prefixCount;
+      if (prefix.indexOf( ' ' ) == -1) {
+        prefixCount = -1;  // looked up in the index only if the n-gram is frequent enough
+      }
+      else if (stackSize > 0 && stackKeys[ stackSize - 1 ].length( ) == split) {
+        prefixCount = stackCounts[ stackSize - 1 ];
+      }
+      else {
+        prefixCount = 0;   // unknown prefix: cannot be scored
+      }
+
+      if (stackSize < maxN - 1) {
+        stackKeys[ stackSize ] = ngram;
+        stackCounts[ stackSize ] = count;
+        stackSize++;
+      }
+
+      if (count < minCount || prefixCount == 0) return;
+      if (prefixCount == -1) {
+        prefixCount = reader.totalTermFreq( new Term( field, prefix ));
+      }
+      long lastCount = reader.totalTermFreq( new Term( field, ngram.substring( split + 1 )));
+      if (prefixCount <= 0 || lastCount <= 0) return;
+
+      double pmi = pmi( count, prefixCount, lastCount, totalTokens );
+      double llr = llr( count, prefixCount, lastCount, totalTokens );
+      if (pmi < minPmi || llr < minLlr) return;
+
+      float value = weight == Weight.COUNT ? count : (float)(weight == Weight.PMI ? pmi : llr);
+      Candidate candidate = new Candidate( ngram, count, pmi, llr, value );
+      if (best == null) {
+        output.add( candidate );
+      }
+      else if (best.size( ) < top) {
+        best.add( candidate );
+      }
+      else if (best.peek( ).getWeight( ) < value) {
+        best.poll( );
+        best.add( candidate );
+      }
+    }
+
+    private boolean isPrefix( String prefix, String ngram ) {
+      return ngram.length( ) > prefix.length( ) && ngram.charAt( prefix.length( ) ) == ' ' && ngram.startsWith( prefix );
+    }
+
+    void finish( ) throws IOException {
+      if (best == null) return;
+      List<Candidate> sorted = new ArrayList<Candidate>( best.size( ));
+      while (!best.isEmpty( )) {
+        sorted.add( best.poll( ));
+      }
+      Collections.reverse( sorted );
+      for (Candidate candidate : sorted) {
+        output.add( candidate );
+      }
+    }
+  }
+
+  private static class RunWriter implements CountSink {
+    private final DataOutputStream out;
+
+    RunWriter( File file ) throws IOException {
+      out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ));
+    }
+
+    @Override
+    public void add( String ngram, long count ) throws IOException {
+      out.writeBoolean( true );
+      out.writeUTF( ngram );
+      out.writeLong( count );
+    }
+
+    void close( ) throws IOException {
+      out.writeBoolean( false );
+      out.close( );
+    }
+  }
+
+  private static class RunReader implements Comparable<RunReader> {
+    private final DataInputStream in;
+    String key;
+    long count;
+
+    RunReader( File file ) throws IOException {
+      in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ));
+    }
+
+    boolean next( ) throws IOException {
+      if (!in.readBoolean( )) return false;
+      key = in.readUTF( );
+      count = in.readLong( );
+      return true;
+    }
+
+    void close( ) throws IOException {
+      in.close( );
+    }
+
+    @Override
+    public int compareTo( RunReader other ) {
+      return key.compareTo( other.key );
+    }
+  }
+
+  // An analyzer by class name, built with its no argument or its Version constructor
+  static Analyzer newAnalyzer( String className ) throws Exception {
+    Class<? extends Analyzer> analyzerClass = Class.forName( className ).asSubclass( Analyzer.class );
+    try {
+      return analyzerClass.getConstructor( ).newInstance( );
+    }
+    catch (NoSuchMethodException e) {
+      return analyzerClass.getConstructor( Version.class ).newInstance( Version.LATEST );
+    }
+  }
+
+  // The index analyzer of the field's type in the schema of a Solr core, read from its conf
+  // directory. The resource loader is left open: the analyzer may load classes from the core's lib.
+  static Analyzer schemaAnalyzer( File coreDir, String field ) throws Exception {
+    SolrResourceLoader loader = new SolrResourceLoader( coreDir.getAbsolutePath( ));
+    SolrConfig config = new SolrConfig( loader, SolrConfig.DEFAULT_CONF_FILE, null );
+    IndexSchema schema = IndexSchemaFactory.buildIndexSchema( IndexSchema.DEFAULT_SCHEMA_FILE, config );
+    return schema.getFieldType( field ).getIndexAnalyzer( );
+  }
+
+  private static void usage( String message ) {
+    System.err.println( message );
+    System.err.println( "usage: AutoPhraseMiner -index <dir> -field <field> [-textField <field>] [-maxN 3]"
+                        + " [-minCount 5] [-minPmi 0] [-minLlr 10.83] [-top 0] [-weight llr|pmi|count]"
+                        + " [-format tsv|phrases|compiled] [-output <file>] [-threads <n>]"
+                        + " [-maxEntries 1000000] [-tmpDir <dir>] [-analyzer <class> | -coreDir <dir>]" );
+    System.exit( 1 );
+  }
+
+  public static void main( String[] args ) throws Exception {
+    Map<String,String> options = new HashMap<String,String>( );
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith( "-" ) || i + 1 >= args.length) usage( "bad argument: " + args[i] );
+      options.put( args[i].substring( 1 ), args[++i] );
+    }
+    String index = options.remove( "index" );
+    String field = options.remove( "field" );
+    if (index == null || field == null) usage( "-index and -field are required" );
+
+    String analyzerClass = options.remove( "analyzer" );
+    String coreDir = options.remove( "coreDir" );
+    if (analyzerClass != null && coreDir != null) usage( "-analyzer and -coreDir are exclusive" );
+
+    final AutoPhraseMiner miner = new AutoPhraseMiner( field );
+    if (analyzerClass != null) miner.setAnalyzer( newAnalyzer( analyzerClass ));
+    if (coreDir != null) miner.setAnalyzer( schemaAnalyzer( new File( coreDir ), field ));
+    Format format = Format.TSV;
+    String outputFile = null;
+    for (Map.Entry<String,String> option : options.entrySet( )) {
+      String name = option.getKey( );
+      String value = option.getValue( );
+      if (name.equals( "textField" )) miner.setTextField( value );
+      else if (name.equals( "maxN" )) miner.setMaxN( Integer.parseInt( value ));
+      else if (name.equals( "minCount" )) miner.setMinCount( Long.parseLong( value ));
+      else if (name.equals( "minPmi" )) miner.setMinPmi( Double.parseDouble( value ));
+      else if (name.equals( "minLlr" )) miner.setMinLlr( Double.parseDouble( value ));
+      else if (name.equals( "top" )) miner.setTop( Integer.parseInt( value ));
+      else if (name.equals( "weight" )) miner.setWeight( Weight.valueOf( value.toUpperCase( )));
+      else if (name.equals( "threads" )) miner.setThreads( Integer.parseInt( value ));
+      else if (name.equals( "maxEntries" )) miner.setMaxEntries( Integer.parseInt( value ));
+      else if (name.equals( "tmpDir" )) miner.setTmpDir( new File( value ));
+      else if (name.equals( "format" )) format = Format.valueOf( value.toUpperCase( ));
+      else if (name.equals( "output" )) outputFile = value;
+      else usage( "unknown option: -" + name );
+    }
+    if (format == Format.COMPILED && outputFile == null) usage( "-format compiled requires -output" );
+
+    OutputStream out = outputFile != null ? new FileOutputStream( outputFile ) : System.out;
+    IndexReader reader = DirectoryReader.open( FSDirectory.open( new File( index )));
+    try {
+      if (format == Format.COMPILED) {
+        final AutoPhraseDictionary.Builder builder = new AutoPhraseDictionary.Builder( true );
+        final AutoPhraseDictionary.Source source = new AutoPhraseDictionary.Source( "default", 0, null, null );
+        miner.mine( reader, new CandidateOutput( ) {
+          @Override
+          public void add( Candidate candidate ) {
+            builder.add( source, candidate.getPhrase( ), candidate.getWeight( ) );
+          }
+        } );
+        builder.build( ).write( out );
+      }
+      else {
+        final PrintWriter writer = new PrintWriter( new OutputStreamWriter( out, StandardCharsets.UTF_8 ));
+        final boolean tsv = format == Format.TSV;
+        miner.mine( reader, new CandidateOutput( ) {
+          @Override
+          public void add( Candidate candidate ) {
+            writer.println( tsv ? candidate.toString( ) : candidate.getPhrase( ));
+          }
+        } );
+        writer.flush( );
+      }
+    }
+    finally {
+      reader.close( );
+      out.close( );
+    }
+  }
+}
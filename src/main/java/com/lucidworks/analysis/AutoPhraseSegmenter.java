@@ -0,0 +1,152 @@
+package com.lucidworks.analysis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses the phrase, if any, that replaces the token at the head of a lookahead window, using
+ * one of the {@link MultiAutoPhrasingTokenFilter.Segmentation} policies. Shared by the filters
+ * built on {@link AutoPhraseDictionary} so that they segment text identically.
+ *
+ * A window stops at its first token that occurs in no phrase: no phrase spans such a token, so
+ * the choice at the head never depends on the text behind it. The dynamic programming policies
+ * run a backward pass over the window, which walks the trie from every window token once:
+ * O(window * maxPhraseLength) per head, with no backtracking.
+ *
+ * Not thread safe: the dynamic programming tables are reused between calls.
+ */
+final class AutoPhraseSegmenter {
+
+  private static final Logger Log = LoggerFactory.getLogger( AutoPhraseSegmenter.class );
+
+  private final AutoPhraseDictionary dictionary;
+  private final MultiAutoPhrasingTokenFilter.Segmentation segmentation;
+
+  // score[i]: best score of the window from token i on; choice[i]: phrase taken at token i
+  private double[] score = new double[ 0 ];
+  private AutoPhraseDictionary.Phrase[] choice = new AutoPhraseDictionary.Phrase[ 0 ];
+
+  AutoPhraseSegmenter( AutoPhraseDictionary dictionary, MultiAutoPhrasingTokenFilter.Segmentation segmentation ) {
+    this.dictionary = dictionary;
+    this.segmentation = segmentation;
+  }
+
+  /**
+   * @return the lookahead, in tokens from the head, a window needs for {@link #selectPhrase}
+   */
+  int getWindowSize( ) {
+    return Math.max( 1, 2 * dictionary.getMaxPhraseLength( ) - 1 );
+  }
+
+  /**
+   * @return the phrase that replaces terms[start] and the tokens after it, or null if
+   * terms[start] is passed through. terms[start, end) is the lookahead window.
+   */
+  AutoPhraseDictionary.Phrase selectPhrase( char[][] terms, int start, int end ) {
+    switch (segmentation) {
+      case LEFTMOST_LONGEST:
+        return longestPhraseAt( terms, start, end );
+      case MAX_COVERAGE:
+      case WEIGHTED:
+        return bestSegmentation( terms, start, end );
+      default:
+        return priorityPhrase( terms, start, end );
+    }
+  }
+
+  /**
+   * @return the phrase starting at terms[start] with the highest priority, then the longest
+   */
+  AutoPhraseDictionary.Phrase bestPhraseAt( char[][] terms, int start, int end ) {
+    AutoPhraseDictionary.Phrase best = null;
+    AutoPhraseDictionary.Node node = dictionary.getRoot( );
+    for (int i = start; i < end; i++) {
+      node = dictionary.next( node, terms[i], 0, terms[i].length );
+      if (node == null) break;
+
+      AutoPhraseDictionary.Phrase phrase = node.getPhrase( );
+      if (phrase != null && (best == null || phrase.getPriority( ) >= best.getPriority( ))) {
+        // later matches are longer, so >= prefers the longest phrase within a priority
+        best = phrase;
+      }
+    }
+    return best;
+  }
+
+  // PRIORITY: a phrase yields to a phrase of strictly higher priority starting inside it.
+  private AutoPhraseDictionary.Phrase priorityPhrase( char[][] terms, int start, int end ) {
+    AutoPhraseDictionary.Phrase best = bestPhraseAt( terms, start, end );
+    if (best == null) return null;
+
+    for (int i = start + 1; i < start + best.getLength( ); i++) {
+      AutoPhraseDictionary.Phrase overlapping = bestPhraseAt( terms, i, end );
+      if (overlapping != null && overlapping.getPriority( ) > best.getPriority( )) {
+        Log.debug( "'" + best + "' yields to '" + overlapping + "'" );
+        return null;
+      }
+    }
+    return best;
+  }
+
+  private AutoPhraseDictionary.Phrase longestPhraseAt( char[][] terms, int start, int end ) {
+    AutoPhraseDictionary.Phrase longest = null;
+    AutoPhraseDictionary.Node node = dictionary.getRoot( );
+    for (int i = start; i < end; i++) {
+      node = dictionary.next( node, terms[i], 0, terms[i].length );
+      if (node == null) break;
+      if (node.getPhrase( ) != null) {
+        longest = node.getPhrase( );
+      }
+    }
+    return longest;
+  }
+
+  // MAX_COVERAGE and WEIGHTED: the head decision of the highest scoring segmentation of the
+  // window. On equal scores a phrase beats passing its first token through, and a longer
+  // phrase beats a shorter one, so ties resolve leftmost-longest.
+  private AutoPhraseDictionary.Phrase bestSegmentation( char[][] terms, int start, int end ) {
+    for (int i = start; i < end; i++) {
+      if (!dictionary.isPhraseToken( terms[i], 0, terms[i].length )) {
+        end = i + 1;
+        break;
+      }
+    }
+
+    int size = end - start;
+    if (score.length < size + 1) {
+      score = new double[ size + 1 ];
+      choice = new AutoPhraseDictionary.Phrase[ size + 1 ];
+    }
+
+    score[ size ] = 0.0;
+    for (int i = size - 1; i >= 0; i--) {
+      double best = score[ i + 1 ];
+      AutoPhraseDictionary.Phrase bestPhrase = null;
+
+      AutoPhraseDictionary.Node node = dictionary.getRoot( );
+      for (int j = i; j < size; j++) {
+        char[] term = terms[ start + j ];
+        node = dictionary.next( node, term, 0, term.length );
+        if (node == null) break;
+
+        AutoPhraseDictionary.Phrase phrase = node.getPhrase( );
+        if (phrase == null) continue;
+        double candidate = phraseScore( phrase ) + score[ j + 1 ];
+        if (candidate >= best) {
+          best = candidate;
+          bestPhrase = phrase;
+        }
+      }
+      score[i] = best;
+      choice[i] = bestPhrase;
+    }
+    return choice[0];
+  }
+
+  private double phraseScore( AutoPhraseDictionary.Phrase phrase ) {
+    if (segmentation == MultiAutoPhrasingTokenFilter.Segmentation.WEIGHTED) {
+      return (double)phrase.getWeight( ) * phrase.getLength( );
+    }
+    return phrase.getLength( );
+  }
+}
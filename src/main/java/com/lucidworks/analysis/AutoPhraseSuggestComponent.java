@@ -0,0 +1,103 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.search.QParserPlugin;
+
+/**
+ * Typeahead over the phrases of an {@link AutoPhrasingQParserPlugin}. Suggestions are read from
+ * the compiled dictionary the parser already holds for autophrasing (see
+ * {@link AutoPhraseSuggester}), so no suggester index has to be built or kept in sync with the
+ * phrase list. Each suggestion carries the completed query, the form the parser rewrites it to,
+ * and the phrase weight.
+ *
+ * <pre>
+ * &lt;searchComponent name="autophraseSuggest" class="com.lucidworks.analysis.AutoPhraseSuggestComponent"&gt;
+ *   &lt;str name="parser"&gt;autophrasingParser&lt;/str&gt;
+ * &lt;/searchComponent&gt;
+ *
+ * &lt;requestHandler name="/autophrase/suggest" class="solr.SearchHandler"&gt;
+ *   &lt;lst name="defaults"&gt;
+ *     &lt;bool name="autophrase.suggest"&gt;true&lt;/bool&gt;
+ *     &lt;bool name="distrib"&gt;false&lt;/bool&gt;
+ *   &lt;/lst&gt;
+ *   &lt;arr name="components"&gt;
+ *     &lt;str&gt;autophraseSuggest&lt;/str&gt;
+ *   &lt;/arr&gt;
+ * &lt;/requestHandler&gt;
+ * </pre>
+ *
+ * Request params: autophrase.suggest (enables the component), autophrase.suggest.q (partial
+ * query, defaults to q), autophrase.suggest.count (default 10), and the dictionary selection
+ * params of the parser (autophrase.dict).
+ */
+public class AutoPhraseSuggestComponent extends SearchComponent {
+
+  public static final String SUGGEST_PARAM = "autophrase.suggest";
+  public static final String SUGGEST_Q_PARAM = "autophrase.suggest.q";
+  public static final String SUGGEST_COUNT_PARAM = "autophrase.suggest.count";
+
+  private String parserName = "autophrasingParser";
+
+  @Override
+  public void init( NamedList initArgs ) {
+    super.init( initArgs );
+    SolrParams params = SolrParams.toSolrParams( initArgs );
+    String parser = params.get( "parser" );
+    if (parser != null) {
+      parserName = parser;
+    }
+  }
+
+  @Override
+  public void prepare( ResponseBuilder rb ) throws IOException {
+    // nothing to do: suggestions are computed in process()
+  }
+
+  @Override
+  public void process( ResponseBuilder rb ) throws IOException {
+    SolrParams params = rb.req.getParams( );
+    if (!params.getBool( SUGGEST_PARAM, false )) return;
+
+    String partial = params.get( SUGGEST_Q_PARAM, params.get( CommonParams.Q ));
+    int count = params.getInt( SUGGEST_COUNT_PARAM, 10 );
+
+    QParserPlugin plugin = rb.req.getCore( ).getQueryPlugin( parserName );
+    if (!(plugin instanceof AutoPhrasingQParserPlugin)) {
+      throw new SolrException( SolrException.ErrorCode.SERVER_ERROR,
+                               "queryParser '" + parserName + "' is not an AutoPhrasingQParserPlugin" );
+    }
+    AutoPhrasingQParserPlugin autophraser = (AutoPhrasingQParserPlugin)plugin;
+
+    NamedList<Object> suggestions = new NamedList<Object>( );
+    AutoPhraseDictionary dictionary = autophraser.getDictionary( null, params );
+    if (partial != null && dictionary != null) {
+      AutoPhraseSuggester suggester = new AutoPhraseSuggester( dictionary, autophraser.getReplaceWhitespaceWith( ));
+      for (AutoPhraseSuggester.Suggestion suggestion : suggester.suggest( partial, count )) {
+        NamedList<Object> entry = new SimpleOrderedMap<Object>( );
+        entry.add( "text", suggestion.getText( ));
+        entry.add( "autophrase", suggestion.getOutput( ));
+        entry.add( "weight", suggestion.getWeight( ));
+        suggestions.add( "suggestion", entry );
+      }
+    }
+    rb.rsp.add( "autophraseSuggest", suggestions );
+  }
+
+  @Override
+  public String getDescription( ) {
+    return "Completes partial queries with the phrases of an AutoPhrasingQParserPlugin";
+  }
+
+  @Override
+  public String getSource( ) {
+    return null;
+  }
+}
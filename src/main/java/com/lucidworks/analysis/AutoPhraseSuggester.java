@@ -0,0 +1,211 @@
+package com.lucidworks.analysis;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Completes a partial query with the phrases of an {@link AutoPhraseDictionary}, highest phrase
+ * weight first. The phrase may start at any token of the query; its typed tokens are followed
+ * through the token trie, and the last token, unless the query ends with whitespace, is matched
+ * as a prefix by a binary search over the sorted edges of the current node.
+ *
+ * Completions are found best first: every trie node knows the highest weight below it, so a
+ * search for the top <code>count</code> suggestions only visits the nodes that can still
+ * contribute one. No structure is built beyond the dictionary used for autophrasing.
+ */
+public class AutoPhraseSuggester {
+
+  private final AutoPhraseDictionary dictionary;
+  private final Character replaceWhitespaceWith;
+
+  public AutoPhraseSuggester( AutoPhraseDictionary dictionary, Character replaceWhitespaceWith ) {
+    this.dictionary = dictionary;
+    this.replaceWhitespaceWith = replaceWhitespaceWith;
+  }
+
+  public List<Suggestion> suggest( String partial, int count ) {
+    List<Suggestion> suggestions = new ArrayList<Suggestion>( );
+    if (count <= 0) return suggestions;
+
+    List<char[]> tokens = AutoPhraseDictionary.splitTerms( partial.toCharArray( ) );
+    if (tokens.isEmpty( )) return suggestions;
+    if (dictionary.isIgnoreCase( )) {
+      for (char[] token : tokens) {
+        for (int i = 0; i < token.length; i++) {
+          token[i] = Character.toLowerCase( token[i] );
+        }
+      }
+    }
+    boolean lastIsPrefix = !AutoPhraseDictionary.isSpaceChar( partial.charAt( partial.length( ) - 1 ));
+
+    PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>( );
+    for (int start = 0; start < tokens.size( ); start++) {
+      addStartNodes( tokens, start, lastIsPrefix, queue );
+    }
+
+    Set<String> seen = new HashSet<String>( );
+    while (!queue.isEmpty( ) && suggestions.size( ) < count) {
+      Candidate candidate = queue.poll( );
+      if (candidate.node == null) {
+        Suggestion suggestion = suggestion( tokens, candidate.start, candidate.phrase );
+        if (seen.add( suggestion.getText( ))) {
+          suggestions.add( suggestion );
+        }
+        continue;
+      }
+
+      AutoPhraseDictionary.Node node = candidate.node;
+      if (node.getPhrase( ) != null) {
+        queue.add( new Candidate( candidate.start, node.getPhrase( ) ));
+      }
+      if (!node.isLeaf( )) {
+        AutoPhraseDictionary.Edges edges = node.getSortedEdges( );
+        for (int i = 0; i < edges.size( ); i++) {
+          queue.add( new Candidate( candidate.start, edges.targets[i] ));
+        }
+      }
+    }
+    return suggestions;
+  }
+
+  // Follows tokens[start..] through the trie and queues the nodes a completion can continue from.
+  private void addStartNodes( List<char[]> tokens, int start, boolean lastIsPrefix, PriorityQueue<Candidate> queue ) {
+    AutoPhraseDictionary.Node node = dictionary.getRoot( );
+    int last = tokens.size( ) - 1;
+    for (int i = start; i < last; i++) {
+      char[] token = tokens.get( i );
+      node = dictionary.next( node, token, 0, token.length );
+      if (node == null) return;
+    }
+
+    char[] token = tokens.get( last );
+    if (!lastIsPrefix) {
+      node = dictionary.next( node, token, 0, token.length );
+      if (node != null) {
+        queue.add( new Candidate( start, node ));
+      }
+      return;
+    }
+
+    if (node.isLeaf( )) return;
+    AutoPhraseDictionary.Edges edges = node.getSortedEdges( );
+    for (int i = lowerBound( edges.tokens, token ); i < edges.size( ) && startsWith( edges.tokens[i], token ); i++) {
+      queue.add( new Candidate( start, edges.targets[i] ));
+    }
+  }
+
+  private static int lowerBound( char[][] sorted, char[] key ) {
+    int lo = 0;
+    int hi = sorted.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (AutoPhraseDictionary.TOKEN_ORDER.compare( sorted[mid], key ) < 0) {
+        lo = mid + 1;
+      }
+      else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private static boolean startsWith( char[] token, char[] prefix ) {
+    if (token.length < prefix.length) return false;
+    for (int i = 0; i < prefix.length; i++) {
+      if (token[i] != prefix[i]) return false;
+    }
+    return true;
+  }
+
+  private Suggestion suggestion( List<char[]> tokens, int start, AutoPhraseDictionary.Phrase phrase ) {
+    StringBuilder text = new StringBuilder( );
+    StringBuilder output = new StringBuilder( );
+    for (int i = 0; i < start; i++) {
+      text.append( tokens.get( i ) ).append( ' ' );
+      output.append( tokens.get( i ) ).append( ' ' );
+    }
+    String phraseText = new String( phrase.getText( ) );
+    text.append( phraseText );
+    output.append( replaceWhitespaceWith != null ? phraseText.replace( ' ', replaceWhitespaceWith.charValue( ) ) : phraseText );
+    return new Suggestion( text.toString( ), output.toString( ), phrase );
+  }
+
+  /**
+   * A completed query: the typed tokens before the phrase followed by the phrase.
+   */
+  public static class Suggestion {
+    private final String text;
+    private final String output;
+    private final AutoPhraseDictionary.Phrase phrase;
+
+    Suggestion( String text, String output, AutoPhraseDictionary.Phrase phrase ) {
+      this.text = text;
+      this.output = output;
+      this.phrase = phrase;
+    }
+
+    /**
+     * @return the completed query with the phrase tokens separated by spaces
+     */
+    public String getText( ) {
+      return text;
+    }
+
+    /**
+     * @return the completed query with the phrase joined as AutoPhrasingQParserPlugin rewrites it
+     */
+    public String getOutput( ) {
+      return output;
+    }
+
+    public AutoPhraseDictionary.Phrase getPhrase( ) {
+      return phrase;
+    }
+
+    public float getWeight( ) {
+      return phrase.getWeight( );
+    }
+
+    @Override
+    public String toString( ) {
+      return text;
+    }
+  }
+
+  // A trie node still to expand, ranked by the best weight below it, or a complete phrase.
+  // Ties prefer phrases that start earlier in the query, then finished phrases over nodes,
+  // then shorter and alphabetically smaller phrases.
+  private static class Candidate implements Comparable<Candidate> {
+    final int start;
+    final AutoPhraseDictionary.Node node;
+    final AutoPhraseDictionary.Phrase phrase;
+    final float weight;
+
+    Candidate( int start, AutoPhraseDictionary.Node node ) {
+      this.start = start;
+      this.node = node;
+      this.phrase = null;
+      this.weight = node.getMaxWeight( );
+    }
+
+    Candidate( int start, AutoPhraseDictionary.Phrase phrase ) {
+      this.start = start;
+      this.node = null;
+      this.phrase = phrase;
+      this.weight = phrase.getWeight( );
+    }
+
+    @Override
+    public int compareTo( Candidate other ) {
+      if (weight != other.weight) return weight > other.weight ? -1 : 1;
+      if (start != other.start) return start - other.start;
+      if ((phrase == null) != (other.phrase == null)) return phrase != null ? -1 : 1;
+      if (phrase == null) return 0;
+      if (phrase.getLength( ) != other.phrase.getLength( )) return phrase.getLength( ) - other.phrase.getLength( );
+      return AutoPhraseDictionary.TOKEN_ORDER.compare( phrase.getText( ), other.phrase.getText( ));
+    }
+  }
+}
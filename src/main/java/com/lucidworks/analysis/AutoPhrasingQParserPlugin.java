@@ -2,42 +2,86 @@ package com.lucidworks.analysis;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
 
-import org.apache.lucene.analysis.core.StopFilter;
 import org.apache.lucene.analysis.core.WhitespaceTokenizer;
 import org.apache.lucene.analysis.core.LowerCaseFilter;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.util.CharArrayMap;
 import org.apache.lucene.analysis.util.CharArraySet;
 import org.apache.lucene.analysis.util.ResourceLoader;
 import org.apache.lucene.analysis.util.ResourceLoaderAware;
-import org.apache.lucene.analysis.util.WordlistLoader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.search.QParser;
 import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.SortSpec;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.util.ConcurrentLRUCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.charset.StandardCharsets;
-
 
 public class AutoPhrasingQParserPlugin extends QParserPlugin implements ResourceLoaderAware {
 	
   private static final Logger Log = LoggerFactory.getLogger( AutoPhrasingQParserPlugin.class );
-  private CharArraySet phraseSets;
+
+  // Marker set by AutoPhrasingRewriteComponent once q has been autophrased on the
+  // coordinating node; shard requests inherit it and skip the rewrite.
+  public static final String REWRITTEN_PARAM = "autophrase.rewritten";
+
+  // selects one of the configured dictionaries: dict as a local param, autophrase.dict as a request param
+  public static final String DICT_PARAM = "dict";
+  public static final String REQUEST_DICT_PARAM = "autophrase.dict";
+
+  // request context key under which AutoPhrasingRewriteComponent leaves its RewriteTrace
+  static final String TRACE_CONTEXT_KEY = "autophrase.trace";
+
+  // name of the dictionary of the phrases init arg, reserved in the dictionaries list
+  static final String DEFAULT_DICTIONARY_NAME = "default";
+
+  private PhraseDictionary defaultDictionary;
   private String phraseSetFiles;
+
+  // named dictionaries, loaded on first use into a cache bounded by dictionaryCacheRamMB
+  private final Map<String,String> dictionaryFiles = new HashMap<String,String>( );
+  private int dictionaryCacheRamMB = 64;
+  private AutoPhraseDictionaryCache<PhraseDictionary> dictionaryCache;
+  private ResourceLoader loader;
+
+  // rewritten queries by dictionary name and version, flags and query string; off unless rewriteCacheSize > 0
+  private int rewriteCacheSize = 0;
+  private ConcurrentLRUCache<String,String> rewriteCache;
   
   private String parserImpl = "lucene";
   
   private char replaceWhitespaceWith = 'x';  // preserves stemming
   
   private boolean ignoreCase = true;
+
+  // fuzzy (misspelling tolerant) phrase matching, off by default
+  private boolean fuzzy = false;
+  private int fuzzyMaxEdits = 1;
+  private int fuzzyMinTermLength = 4;
+  private int fuzzyMaxExpansions = 10;
+  private int fuzzyMaxTotalExpansions = 100;
+
+  // canonical rewrites (trimmed, top level clauses sorted), off by default
+  private boolean canonical = false;
 	
   @Override
   public void init( NamedList initArgs ) {
@@ -59,21 +103,186 @@ public class AutoPhrasingQParserPlugin extends QParserPlugin implements Resource
     if (ignoreCaseSt != null && ignoreCaseSt.equalsIgnoreCase( "false" )) {
       ignoreCase = false;
     }
+
+    fuzzy = params.getBool( "fuzzy", fuzzy );
+    fuzzyMaxEdits = params.getInt( "fuzzyMaxEdits", fuzzyMaxEdits );
+    fuzzyMinTermLength = params.getInt( "fuzzyMinTermLength", fuzzyMinTermLength );
+    fuzzyMaxExpansions = params.getInt( "fuzzyMaxExpansions", fuzzyMaxExpansions );
+    fuzzyMaxTotalExpansions = params.getInt( "fuzzyMaxTotalExpansions", fuzzyMaxTotalExpansions );
+    canonical = params.getBool( "canonical", canonical );
+
+    Object dictionaries = initArgs.get( "dictionaries" );
+    if (dictionaries instanceof NamedList) {
+      NamedList<?> dictList = (NamedList<?>)dictionaries;
+      for (int i = 0; i < dictList.size( ); i++) {
+        if (DEFAULT_DICTIONARY_NAME.equals( dictList.getName( i ))) {
+          throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "the autophrase dictionary name '"
+                                   + DEFAULT_DICTIONARY_NAME + "' is reserved for the phrases init arg" );
+        }
+        dictionaryFiles.put( dictList.getName( i ), dictList.getVal( i ).toString( ) );
+      }
+    }
+    dictionaryCacheRamMB = params.getInt( "dictionaryCacheRamMB", dictionaryCacheRamMB );
+
+    rewriteCacheSize = params.getInt( "rewriteCacheSize", rewriteCacheSize );
+    if (rewriteCacheSize > 0) {
+      rewriteCache = new ConcurrentLRUCache<String,String>( rewriteCacheSize, Math.max( 1, rewriteCacheSize * 9 / 10 ));
+    }
   }
 
   @Override
   public QParser createParser( String qStr, SolrParams localParams, SolrParams params,
 			                   SolrQueryRequest req) {
     Log.info( "createParser" );
+    // the trace is only built for debugQuery requests; otherwise it stays null and costs nothing
+    RewriteTrace trace = null;
+    if (isRewritten( qStr, params )) {
+      if (isDebugQuery( params )) {
+        Object upstream = req.getContext( ).get( TRACE_CONTEXT_KEY );
+        if (upstream instanceof RewriteTrace) {
+          trace = (RewriteTrace)upstream;
+        }
+        else {
+          // rewritten by a component of another node: only the rewritten query is known here
+          trace = new RewriteTrace( null );
+          trace.rewritten = qStr;
+        }
+        trace.rewrittenUpstream = true;
+      }
+      QParser delegate = getDelegatePlugin( req ).createParser(qStr, localParams, params, req);
+      return trace != null ? new DebugQParser( qStr, localParams, params, req, delegate, trace ) : delegate;
+    }
+
+    if (isDebugQuery( params )) {
+      trace = new RewriteTrace( qStr );
+    }
     ModifiableSolrParams modparams = new ModifiableSolrParams( params );
-    String modQ = filter( qStr );
+    String modQ = rewrite( qStr, localParams, params, trace );
 
     modparams.set( "q", modQ );
-    return req.getCore().getQueryPlugin( parserImpl )
-                        .createParser(modQ, localParams, modparams, req);
+    QParser delegate = getDelegatePlugin( req ).createParser(modQ, localParams, modparams, req);
+    return trace != null ? new DebugQParser( modQ, localParams, modparams, req, delegate, trace ) : delegate;
+  }
+
+  // the plugin of the parser the rewritten query is handed to (defType init arg)
+  QParserPlugin getDelegatePlugin( SolrQueryRequest req ) {
+    return req.getCore( ).getQueryPlugin( parserImpl );
+  }
+
+  /**
+   * Autophrases the query string the same way {@link #createParser} does, without parsing it.
+   */
+  public String rewrite( String qStr, SolrParams localParams, SolrParams params ) {
+    return rewrite( qStr, localParams, params, null );
+  }
+
+  // Records the rewrite in trace when it is not null. Traced rewrites bypass the rewrite cache
+  // so that debug output shows the work a cache miss does.
+  String rewrite( String qStr, SolrParams localParams, SolrParams params, RewriteTrace trace ) {
+    boolean fuzzyQuery = localParams != null ? localParams.getBool( "fuzzy", fuzzy ) : fuzzy;
+    boolean canonicalQuery = localParams != null ? localParams.getBool( "canonical", canonical ) : canonical;
+    PhraseDictionary dictionary = selectDictionary( localParams, params );
+    if (rewriteCache == null || trace != null || dictionary == null || qStr == null) {
+      return filter( qStr, fuzzyQuery, canonicalQuery, dictionary, trace );
+    }
+
+    // the version keeps a named dictionary reloaded from a changed file from serving stale rewrites
+    String key = dictionary.name + '\u0000' + dictionary.version + '\u0000' + (fuzzyQuery ? '1' : '0')
+                 + (canonicalQuery ? '1' : '0') + qStr;
+    String rewritten = rewriteCache.get( key );
+    if (rewritten == null) {
+      rewritten = filter( qStr, fuzzyQuery, canonicalQuery, dictionary, null );
+      rewriteCache.put( key, rewritten );
+    }
+    return rewritten;
+  }
+
+  // Rewrites without the rewrite cache, so that repeated warming passes run the rewrite code.
+  String rewriteUncached( String qStr, SolrParams localParams, SolrParams params ) {
+    boolean fuzzyQuery = localParams != null ? localParams.getBool( "fuzzy", fuzzy ) : fuzzy;
+    boolean canonicalQuery = localParams != null ? localParams.getBool( "canonical", canonical ) : canonical;
+    return filter( qStr, fuzzyQuery, canonicalQuery, selectDictionary( localParams, params ), null );
+  }
+
+  /**
+   * @return the number of cached rewrites, 0 if the rewrite cache is off
+   */
+  public int getRewriteCacheSize( ) {
+    return rewriteCache != null ? rewriteCache.size( ) : 0;
   }
 
-  private String filter( String qStr ) {	
+  static boolean isDebugQuery( SolrParams params ) {
+    if (params == null) return false;
+    if (params.getBool( CommonParams.DEBUG_QUERY, false )) return true;
+    String[] debug = params.getParams( CommonParams.DEBUG );
+    if (debug != null) {
+      for (String value : debug) {
+        if (CommonParams.QUERY.equals( value ) || "all".equals( value ) || "true".equals( value )) return true;
+      }
+    }
+    return false;
+  }
+
+  // Without a dict param the phrases init arg is used. Otherwise this is a single cache
+  // lookup; unknown names are only detected by the loader on a cache miss.
+  private PhraseDictionary selectDictionary( SolrParams localParams, SolrParams params ) {
+    String name = localParams != null ? localParams.get( DICT_PARAM ) : null;
+    if (name == null && params != null) {
+      name = params.get( REQUEST_DICT_PARAM );
+    }
+    if (name == null) {
+      return defaultDictionary;
+    }
+
+    try {
+      return dictionaryCache.get( name );
+    }
+    catch (IOException ioe) {
+      throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "cannot load autophrase dictionary '" + name + "'", ioe );
+    }
+  }
+
+  /**
+   * @return the compiled dictionary a request with these params is autophrased with, or null
+   * if it has none
+   */
+  public AutoPhraseDictionary getDictionary( SolrParams localParams, SolrParams params ) {
+    PhraseDictionary dictionary = selectDictionary( localParams, params );
+    return dictionary != null ? dictionary.dictionary : null;
+  }
+
+  /**
+   * @return the character joining the tokens of a phrase in rewritten queries
+   */
+  public char getReplaceWhitespaceWith( ) {
+    return replaceWhitespaceWith;
+  }
+
+  // Only the main query is rewritten upstream, so the marker applies to q alone and
+  // filter queries using this parser are still autophrased here.
+  private boolean isRewritten( String qStr, SolrParams params ) {
+    return params != null && params.getBool( REWRITTEN_PARAM, false )
+        && qStr != null && qStr.equals( params.get( CommonParams.Q ));
+  }
+
+  String filter( String qStr, boolean fuzzyQuery ) {
+    return filter( qStr, fuzzyQuery, canonical, defaultDictionary, null );
+  }
+
+  private String filter( String qStr, boolean fuzzyQuery, boolean canonicalQuery, PhraseDictionary dictionary,
+                         RewriteTrace trace ) {
+    if (trace != null) {
+      trace.dictionary = dictionary;
+      trace.fuzzy = fuzzyQuery;
+      trace.canonical = canonicalQuery;
+    }
+    if (dictionary == null) {
+      String query = canonicalQuery && qStr != null ? canonicalize( qStr ) : qStr;
+      if (trace != null) trace.rewritten = query;
+      return query;
+    }
+    long start = trace != null ? System.nanoTime( ) : 0L;
+
     // 1) collapse " :" to ":" to protect field names
     // 2) expand ":" to ": " to free terms from field names
     // 3) expand "+" to "+ " to free terms from "+" operator
@@ -93,10 +302,23 @@ public class AutoPhrasingQParserPlugin extends QParserPlugin implements Resource
       query = query.replaceAll( "OR", "||" );
     }
         
+    if (trace != null) {
+      long now = System.nanoTime( );
+      trace.lexNanos += now - start;
+      trace.lexed = query;
+      start = now;
+    }
+
     try {
-      query = autophrase( query );
+      query = fuzzyQuery ? fuzzyAutophrase( query, fuzzyMatcher( dictionary ), trace ) : autophrase( query, dictionary.phraseMap, trace );
     }
     catch (IOException ioe ) {  }
+
+    if (trace != null) {
+      long now = System.nanoTime( );
+      trace.autophraseNanos += now - start;
+      start = now;
+    }
         
     query = query.replaceAll( "\\+ ", "+" );
     query = query.replaceAll( "\\- ", "-" );
@@ -105,66 +327,346 @@ public class AutoPhrasingQParserPlugin extends QParserPlugin implements Resource
       query = query.replaceAll( "&&", "AND" );
       query = query.replaceAll( "\\|\\|", "OR" );
     }
+
+    if (canonicalQuery) {
+      query = canonicalize( query );
+    }
+
+    if (trace != null) {
+      trace.lexNanos += System.nanoTime( ) - start;
+      trace.rewritten = query;
+    }
 		
     return query;
   }
 	
-  private String autophrase( String input ) throws IOException {
+  /**
+   * Gives logically equal flat queries one spelling, so that filter queries differing only in
+   * clause order or spacing parse to equal Query objects and share a filterCache entry. The query
+   * is trimmed and its whitespace collapsed to single spaces. If it is a flat list of clauses (no
+   * AND, OR, NOT, grouping, quoting, ranges, local params or escapes), the clauses are sorted; a
+   * clause is a token with its +/- prefix, joined with the value that follows a "field:" token.
+   * Sorting changes term order, which matters to phrase boosting (pf) of the main query, so the
+   * mode is meant for filter queries.
+   */
+  static String canonicalize( String query ) {
+    String[] tokens = query.trim( ).split( "\\s+" );
+    if (tokens.length == 1) return tokens[0];
+
+    boolean flat = true;
+    for (String token : tokens) {
+      if (!isFlatClauseToken( token )) {
+        flat = false;
+        break;
+      }
+    }
+
+    List<String> clauses = new ArrayList<String>( );
+    for (int i = 0; i < tokens.length; i++) {
+      String clause = tokens[i];
+      if (flat && clause.endsWith( ":" ) && i + 1 < tokens.length) {
+        clause = clause + tokens[++i];
+      }
+      clauses.add( clause );
+    }
+    if (flat) {
+      Collections.sort( clauses );
+    }
+
+    StringBuilder strbuf = new StringBuilder( );
+    for (String clause : clauses) {
+      if (strbuf.length( ) > 0) strbuf.append( ' ' );
+      strbuf.append( clause );
+    }
+    return strbuf.toString( );
+  }
+
+  private static boolean isFlatClauseToken( String token ) {
+    if (token.equals( "AND" ) || token.equals( "OR" ) || token.equals( "NOT" ) || token.equals( "TO" )
+        || token.equals( "&&" ) || token.equals( "||" ) || token.equals( "+" ) || token.equals( "-" )
+        || token.startsWith( "!" )) {
+      return false;
+    }
+    for (int i = 0; i < token.length( ); i++) {
+      switch (token.charAt( i )) {
+        case '(': case ')': case '[': case ']': case '{': case '}': case '"': case '\\':
+          return false;
+        default:
+      }
+    }
+    return true;
+  }
+
+  // Runs the AutoPhrasingTokenFilter of index time analysis, so that rewritten queries resolve
+  // overlapping phrases as the indexed text does. Its phrase map is converted once per dictionary,
+  // so the per query cost depends on the query, not on the size of the dictionary.
+  private String autophrase( String input, CharArrayMap<CharArraySet> phraseMap, RewriteTrace trace ) throws IOException {
     WhitespaceTokenizer wt = new WhitespaceTokenizer(  new StringReader( input ));
     TokenStream ts = wt;
     if (ignoreCase) {
       ts = new LowerCaseFilter( wt );
     }
-    AutoPhrasingTokenFilter aptf = new AutoPhrasingTokenFilter( ts, phraseSets, false );
+    AutoPhrasingTokenFilter aptf = new AutoPhrasingTokenFilter( ts, phraseMap, false );
     aptf.setReplaceWhitespaceWith( new Character( replaceWhitespaceWith ) );
     CharTermAttribute term = aptf.addAttribute(CharTermAttribute.class);
     aptf.reset();
         
     StringBuffer strbuf = new StringBuffer( );
+    List<String> output = trace != null ? new ArrayList<String>( ) : null;
     while( aptf.incrementToken( )) {
       strbuf.append( term.toString( ) ).append( " " );
+      if (output != null) output.add( term.toString( ) );
+    }
+
+    if (trace != null) {
+      tracePhrases( input, output, trace );
     }
         
     return strbuf.toString();
   }
 
+  // The exact rewrite only yields tokens, so phrases are found by aligning them with the
+  // whitespace tokens of the lexed query: an output token that is not the next input token
+  // is the join of the input tokens it replaced.
+  private void tracePhrases( String input, List<String> output, RewriteTrace trace ) throws IOException {
+    List<String> tokens = new ArrayList<String>( );
+    for (char[] token : lexedTokens( input )) {
+      tokens.add( new String( token ));
+    }
+
+    int next = 0;
+    for (String token : output) {
+      if (next < tokens.size( ) && token.equals( tokens.get( next ))) {
+        next++;
+        continue;
+      }
+      StringBuilder joined = new StringBuilder( );
+      for (int end = next; end < tokens.size( ); end++) {
+        if (end > next) joined.append( replaceWhitespaceWith );
+        joined.append( tokens.get( end ));
+        if (joined.length( ) >= token.length( )) {
+          if (token.contentEquals( joined )) {
+            trace.addPhrase( token, next, end + 1 );
+            next = end + 1;
+          }
+          break;
+        }
+      }
+    }
+  }
+
+  private List<char[]> lexedTokens( String input ) throws IOException {
+    WhitespaceTokenizer wt = new WhitespaceTokenizer(  new StringReader( input ));
+    TokenStream ts = wt;
+    if (ignoreCase) {
+      ts = new LowerCaseFilter( wt );
+    }
+    CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+    List<char[]> tokens = new ArrayList<char[]>( );
+    ts.reset();
+    while( ts.incrementToken( )) {
+      char[] token = new char[ term.length() ];
+      System.arraycopy( term.buffer(), 0, token, 0, term.length() );
+      tokens.add( token );
+    }
+    ts.end();
+    ts.close();
+    return tokens;
+  }
+
+  // Same output format as autophrase(), but phrases are matched through the compiled
+  // dictionary with per token edit distance, and the dictionary spelling is emitted.
+  private String fuzzyAutophrase( String input, FuzzyAutoPhraseMatcher fuzzyMatcher, RewriteTrace trace ) throws IOException {
+    List<char[]> tokens = lexedTokens( input );
+
+    StringBuffer strbuf = new StringBuffer( );
+    int position = 0;
+    for (Object unit : fuzzyMatcher.match( tokens )) {
+      if (unit instanceof AutoPhraseDictionary.Phrase) {
+        // join the dictionary spelling the same way AutoPhrasingTokenFilter does
+        AutoPhraseDictionary.Phrase phrase = (AutoPhraseDictionary.Phrase)unit;
+        String joined = new String( phrase.getText( ) ).replace( ' ', replaceWhitespaceWith );
+        strbuf.append( joined );
+        if (trace != null) trace.addPhrase( joined, position, position + phrase.getLength( ) );
+        position += phrase.getLength( );
+      }
+      else {
+        strbuf.append( (char[])unit );
+        position++;
+      }
+      strbuf.append( " " );
+    }
+
+    return strbuf.toString();
+  }
+
   @Override
   public void inform(ResourceLoader loader) throws IOException {
+    this.loader = loader;
     if (phraseSetFiles != null) {
-      phraseSets = getWordSet(loader, phraseSetFiles, true );
+      defaultDictionary = loadDictionary( DEFAULT_DICTIONARY_NAME, phraseSetFiles );
     }
-  }
-	
-  private CharArraySet getWordSet( ResourceLoader loader,
-		                           String wordFiles, boolean ignoreCase)
-		                           throws IOException {
-    List<String> files = splitFileNames(wordFiles);
-	CharArraySet words = null;
-    if (files.size() > 0) {
-      // default stopwords list has 35 or so words, but maybe don't make it that
-      // big to start
-      words = new CharArraySet( files.size() * 10, ignoreCase);
-      for (String file : files) {
-        List<String> wlist = getLines(loader, file.trim());
-    	words.addAll(StopFilter.makeStopSet( wlist, ignoreCase));
+
+    dictionaryCache = new AutoPhraseDictionaryCache<PhraseDictionary>( new AutoPhraseDictionaryCache.Loader<PhraseDictionary>( ) {
+      @Override
+      public PhraseDictionary load( String name ) throws IOException {
+        String files = dictionaryFiles.get( name );
+        if (files == null) {
+          throw new SolrException( SolrException.ErrorCode.BAD_REQUEST, "unknown autophrase dictionary: " + name );
+        }
+        return loadDictionary( name, files );
       }
+    }, dictionaryCacheRamMB * RamUsageEstimator.ONE_MB );
+  }
+
+  private PhraseDictionary loadDictionary( String name, String files ) throws IOException {
+    AutoPhraseDictionary dictionary = AutoPhraseDictionary.load( loader, files, true );
+    CharArraySet phrases = new CharArraySet( dictionary.size( ), true );
+    // order independent checksum of the phrase texts, reported as the dictionary version in debug output
+    CRC32 crc = new CRC32( );
+    long version = 0L;
+    for (AutoPhraseDictionary.Phrase phrase : dictionary.getPhrases( )) {
+      phrases.add( phrase.getText( ) );
+      crc.reset( );
+      crc.update( new String( phrase.getText( ) ).getBytes( StandardCharsets.UTF_8 ));
+      version += crc.getValue( );
     }
-    return words;
+    return new PhraseDictionary( name, Long.toHexString( version ), AutoPhrasingTokenFilter.convertPhraseSet( phrases ),
+                                 AutoPhraseDictionary.ramBytesUsed( phrases ), dictionary );
   }
-	
-  private List<String> getLines(ResourceLoader loader, String resource) throws IOException {
-	return WordlistLoader.getLines(loader.openResource(resource), StandardCharsets.UTF_8);
+
+  // The fuzzy matcher is only built for dictionaries that serve a fuzzy request. Two requests
+  // may both build it; either instance is equivalent.
+  private FuzzyAutoPhraseMatcher fuzzyMatcher( PhraseDictionary dictionary ) {
+    FuzzyAutoPhraseMatcher matcher = dictionary.fuzzyMatcher;
+    if (matcher == null) {
+      matcher = new FuzzyAutoPhraseMatcher( dictionary.dictionary, fuzzyMaxEdits, fuzzyMinTermLength,
+                                            fuzzyMaxExpansions, fuzzyMaxTotalExpansions, true );
+      dictionary.fuzzyMatcher = matcher;
+    }
+    return matcher;
   }
 
-  private List<String> splitFileNames(String fileNames) {
-    if (fileNames == null)
-      return Collections.<String>emptyList();
+  // One phrase list: the phrase map of the exact rewrite, converted once for all the
+  // AutoPhrasingTokenFilters that read it, and the compiled trie of fuzzy matching and suggestions.
+  static class PhraseDictionary implements Accountable {
+    final String name;
+    final String version;
+    final CharArrayMap<CharArraySet> phraseMap;
+    final long phraseMapBytes;
+    final AutoPhraseDictionary dictionary;
+    volatile FuzzyAutoPhraseMatcher fuzzyMatcher;
 
-    List<String> result = new ArrayList<>();
-    for (String file : fileNames.split("(?<!\\\\),")) {
-      result.add(file.replaceAll("\\\\(?=,)", ""));
+    PhraseDictionary( String name, String version, CharArrayMap<CharArraySet> phraseMap, long phraseMapBytes,
+                      AutoPhraseDictionary dictionary ) {
+      this.name = name;
+      this.version = version;
+      this.phraseMap = phraseMap;
+      this.phraseMapBytes = phraseMapBytes;
+      this.dictionary = dictionary;
     }
 
-    return result;
+    @Override
+    public long ramBytesUsed( ) {
+      return phraseMapBytes + dictionary.ramBytesUsed( );
+    }
+  }
+
+  /**
+   * What one rewrite did, collected only for debugQuery requests and reported under
+   * "autophrase" in the debug section: the original, lexed and rewritten query, the phrases
+   * with their [start, end) token span in the lexed query, the dictionary, and the time spent
+   * lexing (isolating and restoring the query syntax), autophrasing and in the delegate parser.
+   */
+  static class RewriteTrace {
+    final String original;
+    String lexed;
+    String rewritten;
+    boolean fuzzy;
+    boolean canonical;
+    boolean rewrittenUpstream;
+    PhraseDictionary dictionary;
+    final NamedList<Object> phrases = new NamedList<Object>( );
+    long lexNanos;
+    long autophraseNanos;
+    long parseNanos;
+
+    RewriteTrace( String original ) {
+      this.original = original;
+    }
+
+    void addPhrase( String phrase, int start, int end ) {
+      NamedList<Object> span = new NamedList<Object>( );
+      span.add( "start", start );
+      span.add( "end", end );
+      phrases.add( phrase, span );
+    }
+
+    NamedList<Object> toNamedList( ) {
+      NamedList<Object> info = new NamedList<Object>( );
+      info.add( "original", original );
+      info.add( "lexed", lexed );
+      info.add( "rewritten", rewritten );
+      info.add( "rewrittenUpstream", rewrittenUpstream );
+      info.add( "fuzzy", fuzzy );
+      info.add( "canonical", canonical );
+      info.add( "phrases", phrases );
+      if (dictionary != null) {
+        NamedList<Object> dict = new NamedList<Object>( );
+        dict.add( "name", dictionary.name );
+        dict.add( "version", dictionary.version );
+        dict.add( "size", dictionary.dictionary.size( ));
+        info.add( "dictionary", dict );
+      }
+      NamedList<Object> timing = new NamedList<Object>( );
+      timing.add( "lexNanos", lexNanos );
+      timing.add( "autophraseNanos", autophraseNanos );
+      timing.add( "parseNanos", parseNanos );
+      info.add( "timing", timing );
+      return info;
+    }
+  }
+
+  // Wraps the delegate parser of a debugQuery request to time its parse and add the trace to
+  // the debug section. Requests without debugQuery get the delegate parser itself.
+  static class DebugQParser extends QParser {
+    private final QParser delegate;
+    private final RewriteTrace trace;
+
+    DebugQParser( String qStr, SolrParams localParams, SolrParams params, SolrQueryRequest req,
+                  QParser delegate, RewriteTrace trace ) {
+      super( qStr, localParams, params, req );
+      this.delegate = delegate;
+      this.trace = trace;
+    }
+
+    @Override
+    public Query parse( ) throws SyntaxError {
+      long start = System.nanoTime( );
+      Query parsed = delegate.getQuery( );
+      trace.parseNanos = System.nanoTime( ) - start;
+      return parsed;
+    }
+
+    @Override
+    public SortSpec getSort( boolean useGlobalParams ) throws SyntaxError {
+      return delegate.getSort( useGlobalParams );
+    }
+
+    @Override
+    public String[] getDefaultHighlightFields( ) {
+      return delegate.getDefaultHighlightFields( );
+    }
+
+    @Override
+    public Query getHighlightQuery( ) throws SyntaxError {
+      return delegate.getHighlightQuery( );
+    }
+
+    @Override
+    public void addDebugInfo( NamedList<Object> debugInfo ) {
+      delegate.addDebugInfo( debugInfo );
+      debugInfo.add( "autophrase", trace.toNamedList( ));
+    }
   }
-}
\ No newline at end of file
+}
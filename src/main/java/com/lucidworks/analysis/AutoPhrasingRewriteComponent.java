@@ -0,0 +1,111 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.QueryParsing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Autophrases the main query once on the node that receives the request. In a sharded
+ * collection the top level request and every shard request would otherwise run the same
+ * rewrite in {@link AutoPhrasingQParserPlugin#createParser}. This component rewrites q before
+ * the query component runs and adds the {@link AutoPhrasingQParserPlugin#REWRITTEN_PARAM}
+ * marker; shard requests inherit both, and the plugin then hands the query straight to its
+ * delegate parser.
+ *
+ * Register it as a first-component of the search handler that uses the autophrasing parser:
+ *
+ * <pre>
+ * &lt;searchComponent name="autophraseRewrite" class="com.lucidworks.analysis.AutoPhrasingRewriteComponent"&gt;
+ *   &lt;str name="parser"&gt;autophrasingParser&lt;/str&gt;
+ * &lt;/searchComponent&gt;
+ * </pre>
+ *
+ * Only requests whose defType is the configured parser are rewritten, and only if q does not
+ * start with local params.
+ */
+public class AutoPhrasingRewriteComponent extends SearchComponent {
+
+  private static final Logger Log = LoggerFactory.getLogger( AutoPhrasingRewriteComponent.class );
+
+  private String parserName = "autophrasingParser";
+
+  @Override
+  public void init( NamedList initArgs ) {
+    super.init( initArgs );
+    SolrParams params = SolrParams.toSolrParams( initArgs );
+    String parser = params.get( "parser" );
+    if (parser != null) {
+      parserName = parser;
+    }
+  }
+
+  @Override
+  public void prepare( ResponseBuilder rb ) throws IOException {
+    SolrParams params = rb.req.getParams( );
+    if (params.getBool( ShardParams.IS_SHARD, false ) || params.getBool( AutoPhrasingQParserPlugin.REWRITTEN_PARAM, false )) {
+      return;
+    }
+    if (!parserName.equals( params.get( QueryParsing.DEFTYPE ))) {
+      return;
+    }
+
+    String q = rb.getQueryString( ) != null ? rb.getQueryString( ) : params.get( CommonParams.Q );
+    // with local params the query may name another parser; QParser.getParser strips the block
+    // before the autophrasing parser sees the rest, so that query is left to the parser
+    if (q == null || q.startsWith( QueryParsing.LOCALPARAM_START )) return;
+
+    QParserPlugin plugin = getParserPlugin( rb.req );
+    if (!(plugin instanceof AutoPhrasingQParserPlugin)) {
+      throw new SolrException( SolrException.ErrorCode.SERVER_ERROR,
+                               "queryParser '" + parserName + "' is not an AutoPhrasingQParserPlugin" );
+    }
+
+    // with debugQuery the parser reports this rewrite, which it does not repeat
+    AutoPhrasingQParserPlugin.RewriteTrace trace = null;
+    if (AutoPhrasingQParserPlugin.isDebugQuery( params )) {
+      trace = new AutoPhrasingQParserPlugin.RewriteTrace( q );
+      rb.req.getContext( ).put( AutoPhrasingQParserPlugin.TRACE_CONTEXT_KEY, trace );
+    }
+
+    String rewritten = ((AutoPhrasingQParserPlugin)plugin).rewrite( q, null, params, trace );
+    Log.debug( "rewrote '" + q + "' to '" + rewritten + "'" );
+
+    ModifiableSolrParams modparams = new ModifiableSolrParams( params );
+    modparams.set( CommonParams.Q, rewritten );
+    modparams.set( AutoPhrasingQParserPlugin.REWRITTEN_PARAM, true );
+    rb.req.setParams( modparams );
+    rb.setQueryString( rewritten );
+  }
+
+  // the plugin registered under the parser name
+  QParserPlugin getParserPlugin( SolrQueryRequest req ) {
+    return req.getCore( ).getQueryPlugin( parserName );
+  }
+
+  @Override
+  public void process( ResponseBuilder rb ) throws IOException {
+    // nothing to do: the rewrite happens in prepare()
+  }
+
+  @Override
+  public String getDescription( ) {
+    return "Autophrases the main query once on the coordinating node";
+  }
+
+  @Override
+  public String getSource( ) {
+    return null;
+  }
+}
@@ -0,0 +1,105 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Map;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.synonym.SynonymFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.analysis.util.ResourceLoader;
+import org.apache.lucene.analysis.util.ResourceLoaderAware;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+
+/**
+ * Replaces an AutoPhrasingTokenFilterFactory followed by a SynonymFilterFactory with a single
+ * {@link SynonymFilter} whose map holds both the auto phrases and the synonym rules (see
+ * {@link AutoPhrasingSynonymParser}):
+ *
+ * <pre>
+ * &lt;filter class="com.lucidworks.analysis.AutoPhrasingSynonymFilterFactory"
+ *         phrases="autophrases.txt" synonyms="synonyms.txt"
+ *         ignoreCase="true" includeTokens="false" replaceWhitespaceWith="_" expand="true" /&gt;
+ * </pre>
+ *
+ * Synonym files use the Solr format. The map is built once when the resources are loaded and
+ * shared by the filters created by this factory.
+ *
+ * The output differs from the filter pair on overlapping phrases. SynonymFilter matches
+ * leftmost-longest and never overlaps two matches, so with the phrases "income tax" and
+ * "tax refund" the input "income tax refund" becomes <code>income_tax refund</code>, where
+ * AutoPhrasingTokenFilter emits <code>income_tax tax_refund</code>. Use the pair when the
+ * phrase list overlaps and both phrases must be indexed.
+ */
+public class AutoPhrasingSynonymFilterFactory extends TokenFilterFactory implements ResourceLoaderAware {
+
+  private final String phraseSetFiles;
+  private final String synonymFiles;
+  private final boolean ignoreCase;
+  private final boolean emitSingleTokens;
+  private final boolean expand;
+
+  private String replaceWhitespaceWith = null;
+
+  private SynonymMap map;
+
+  public AutoPhrasingSynonymFilterFactory( Map<String, String> initArgs ) {
+    super( initArgs );
+    phraseSetFiles = require( initArgs, "phrases" );
+    synonymFiles = get( initArgs, "synonyms" );
+    ignoreCase = getBoolean( initArgs, "ignoreCase", false );
+    emitSingleTokens = getBoolean( initArgs, "includeTokens", false );
+    expand = getBoolean( initArgs, "expand", true );
+    replaceWhitespaceWith = get( initArgs, "replaceWhitespaceWith" );
+
+    if (!initArgs.isEmpty( )) {
+      throw new IllegalArgumentException( "Unknown parameters: " + initArgs );
+    }
+  }
+
+  @Override
+  public void inform( ResourceLoader loader ) throws IOException {
+    CharArraySet phrases = AutoPhraseDictionary.loadPhraseSet( loader, phraseSetFiles, ignoreCase );
+    Character separator = replaceWhitespaceWith != null ? new Character( replaceWhitespaceWith.charAt( 0 )) : null;
+    AutoPhrasingSynonymParser parser = new AutoPhrasingSynonymParser( phrases, ignoreCase, emitSingleTokens, separator, expand );
+
+    if (synonymFiles != null) {
+      for (String file : splitFileNames( synonymFiles )) {
+        InputStream in = loader.openResource( file );
+        try {
+          CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder( )
+              .onMalformedInput( CodingErrorAction.REPORT )
+              .onUnmappableCharacter( CodingErrorAction.REPORT );
+          Reader reader = new InputStreamReader( in, decoder );
+          parser.parse( reader );
+        }
+        catch (ParseException pe) {
+          throw new IOException( "Error parsing synonyms file " + file, pe );
+        }
+        finally {
+          in.close( );
+        }
+      }
+    }
+
+    parser.addPhrases( );
+    map = parser.build( );
+  }
+
+  @Override
+  public TokenStream create( TokenStream input ) {
+    // a map without rules has no FST, which SynonymFilter rejects
+    return map.fst == null ? input : new SynonymFilter( input, map, ignoreCase );
+  }
+
+  public SynonymMap getSynonymMap( ) {
+    return map;
+  }
+}
@@ -0,0 +1,119 @@
+package com.lucidworks.analysis;
+
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.CharsRefBuilder;
+
+/**
+ * Compiles auto phrases and Solr format synonym rules into one {@link SynonymMap}, so that a
+ * single {@link org.apache.lucene.analysis.synonym.SynonymFilter} matches both in one pass over
+ * the token stream instead of an auto phrasing filter followed by a synonym filter.
+ *
+ * Every phrase becomes a rule from its tokens to the joined phrase token, keeping the original
+ * tokens only if <code>includeTokens</code> is set. Synonym rules are parsed as by
+ * SolrSynonymParser, with two changes so that they agree with the phrases:
+ * <ul>
+ *  <li>a synonym output that is a phrase is emitted as the joined phrase token;</li>
+ *  <li>a synonym rule whose input is a phrase keeps the original tokens only if
+ *      <code>includeTokens</code> is set, like the phrase rule for the same input.</li>
+ * </ul>
+ * The SynonymFilter sets position lengths, so the joined tokens and multi-token synonyms form
+ * a correct token graph.
+ *
+ * Call {@link #parse} for each synonym file, then {@link #addPhrases}, then {@link #build}.
+ */
+public class AutoPhrasingSynonymParser extends SolrSynonymParser {
+
+  private final CharArraySet phrases;
+  private final boolean includeTokens;
+  private final char separator;
+
+  private final CharsRefBuilder scratch = new CharsRefBuilder( );
+
+  /**
+   * @param phrases the auto phrases, tokens separated by single spaces
+   * @param replaceWhitespaceWith character joining the tokens of a phrase, or null for a space
+   */
+  public AutoPhrasingSynonymParser( CharArraySet phrases, boolean ignoreCase, boolean includeTokens,
+                                    Character replaceWhitespaceWith, boolean expand ) {
+    super( true, expand, analyzer( ignoreCase ));
+    this.phrases = phrases;
+    this.includeTokens = includeTokens;
+    this.separator = replaceWhitespaceWith != null ? replaceWhitespaceWith.charValue( ) : ' ';
+  }
+
+  /**
+   * Adds a rule for every phrase of the phrase set.
+   */
+  public void addPhrases( ) {
+    Iterator<Object> phraseIt = phrases.iterator( );
+    while (phraseIt.hasNext( )) {
+      List<char[]> terms = AutoPhraseDictionary.splitTerms( (char[])phraseIt.next( ));
+      if (terms.size( ) < 2) continue;
+
+      String[] words = new String[ terms.size( ) ];
+      for (int i = 0; i < words.length; i++) {
+        words[i] = new String( terms.get( i ));
+      }
+      CharsRef input = SynonymMap.Builder.join( words, new CharsRefBuilder( ));
+      super.add( input, joined( input ), includeTokens );
+    }
+  }
+
+  @Override
+  public void add( CharsRef input, CharsRef output, boolean includeOrig ) {
+    if (isPhrase( input )) {
+      includeOrig = includeTokens;
+    }
+    if (isPhrase( output )) {
+      output = joined( output );
+    }
+    super.add( input, output, includeOrig );
+  }
+
+  private boolean isPhrase( CharsRef words ) {
+    scratch.copyChars( words );
+    char[] chars = scratch.chars( );
+    boolean multiWord = false;
+    for (int i = 0; i < scratch.length( ); i++) {
+      if (chars[i] == SynonymMap.WORD_SEPARATOR) {
+        chars[i] = ' ';
+        multiWord = true;
+      }
+    }
+    return multiWord && phrases.contains( chars, 0, scratch.length( ));
+  }
+
+  private CharsRef joined( CharsRef words ) {
+    char[] chars = new char[ words.length ];
+    System.arraycopy( words.chars, words.offset, chars, 0, words.length );
+    for (int i = 0; i < chars.length; i++) {
+      if (chars[i] == SynonymMap.WORD_SEPARATOR) {
+        chars[i] = separator;
+      }
+    }
+    return new CharsRef( chars, 0, chars.length );
+  }
+
+  private static Analyzer analyzer( final boolean ignoreCase ) {
+    return new Analyzer( ) {
+      @Override
+      protected TokenStreamComponents createComponents( String fieldName, Reader reader ) {
+        Tokenizer tokenizer = new WhitespaceTokenizer( reader );
+        TokenStream stream = ignoreCase ? new LowerCaseFilter( tokenizer ) : tokenizer;
+        return new TokenStreamComponents( tokenizer, stream );
+      }
+    };
+  }
+}
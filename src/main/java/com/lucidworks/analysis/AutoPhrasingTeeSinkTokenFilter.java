@@ -0,0 +1,307 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.AttributeSource;
+
+/**
+ * Runs the upstream analysis chain and the phrase matching of {@link MultiAutoPhrasingTokenFilter}
+ * once, and feeds the result to several token streams, typically one per field. The filter
+ * itself emits one {@link Mode}; each sink created with {@link #newSinkTokenStream} replays the
+ * same buffered token and phrase states in its own mode:
+ * <ul>
+ *  <li>{@link Mode#PHRASES}: phrases replace the tokens they span, as with includeTokens=false;</li>
+ *  <li>{@link Mode#PHRASES_AND_TOKENS}: every token, with each phrase stacked on its first token,
+ *      as with includeTokens=true (a one token phrase that equals its token is not repeated);</li>
+ *  <li>{@link Mode#PHRASE_SPANS}: the phrases alone, at the position of their first token.</li>
+ * </ul>
+ *
+ * The dictionary is walked once per token and each phrase token is built once; sinks only
+ * restore the shared states and adjust position increments and lengths. Phrase tokens keep their
+ * position length where the positions of their tokens are kept (PHRASES_AND_TOKENS and
+ * PHRASE_SPANS) and take a single position in PHRASES, as in the single pass filter.
+ *
+ * As with Lucene's TeeSinkTokenFilter, the filter must be consumed before its sinks (add its
+ * field to the document first), and sinks must be created after the filter's own consumer chain
+ * so that they have all of its attributes:
+ *
+ * <pre>
+ * AutoPhrasingTeeSinkTokenFilter tee = new AutoPhrasingTeeSinkTokenFilter( source, dictionary, Mode.PHRASES );
+ * TokenStream withTokens = tee.newSinkTokenStream( Mode.PHRASES_AND_TOKENS );
+ * doc.add( new TextField( "text_phrases", tee ));
+ * doc.add( new TextField( "text_all", withTokens ));
+ * </pre>
+ *
+ * All buffered states of a document are kept until the next reset, like in TeeSinkTokenFilter.
+ */
+public final class AutoPhrasingTeeSinkTokenFilter extends TokenFilter {
+
+  public enum Mode { PHRASES, PHRASES_AND_TOKENS, PHRASE_SPANS }
+
+  private final CharTermAttribute termAtt = addAttribute( CharTermAttribute.class );
+  private final OffsetAttribute offsetAtt = addAttribute( OffsetAttribute.class );
+  private final PositionIncrementAttribute posIncAtt = addAttribute( PositionIncrementAttribute.class );
+  private final PositionLengthAttribute posLenAtt = addAttribute( PositionLengthAttribute.class );
+  private final TypeAttribute typeAtt = addAttribute( TypeAttribute.class );
+
+  private final AutoPhraseDictionary dictionary;
+  private final Cursor cursor;
+
+  private Character replaceWhitespaceWith = null;
+
+  // every token of the current document, in input order
+  private final List<Slot> slots = new ArrayList<Slot>( );
+  private boolean exhausted = false;
+  private State finalState;
+
+  public AutoPhrasingTeeSinkTokenFilter( TokenStream input, AutoPhraseDictionary dictionary, Mode mode ) {
+    super( input );
+    this.dictionary = dictionary;
+    this.cursor = new Cursor( this, mode );
+  }
+
+  public void setReplaceWhitespaceWith( Character replaceWhitespaceWith ) {
+    this.replaceWhitespaceWith = replaceWhitespaceWith;
+  }
+
+  /**
+   * @return a stream replaying the output of this filter in <code>mode</code>
+   */
+  public SinkTokenStream newSinkTokenStream( Mode mode ) {
+    return new SinkTokenStream( mode );
+  }
+
+  @Override
+  public boolean incrementToken( ) throws IOException {
+    return cursor.next( );
+  }
+
+  @Override
+  public void end( ) throws IOException {
+    super.end( );
+    finalState = captureState( );
+  }
+
+  @Override
+  public void reset( ) throws IOException {
+    super.reset( );
+    slots.clear( );
+    exhausted = false;
+    finalState = null;
+    cursor.reset( );
+  }
+
+  // Returns the token at index i with its phrase resolved, or null past the last token.
+  private Slot slot( int i ) throws IOException {
+    int needed = i + Math.max( 1, dictionary.getMaxPhraseLength( ));
+    while (!exhausted && slots.size( ) < needed) {
+      if (!input.incrementToken( )) {
+        exhausted = true;
+        break;
+      }
+      slots.add( new Slot( captureState( ), termAtt, offsetAtt, posIncAtt ) );
+    }
+    if (i >= slots.size( )) return null;
+
+    Slot slot = slots.get( i );
+    if (!slot.resolved) {
+      resolve( i, slot );
+    }
+    return slot;
+  }
+
+  // Same selection as MultiAutoPhrasingTokenFilter.bestPhraseAt: highest priority, then longest.
+  private void resolve( int start, Slot slot ) {
+    AutoPhraseDictionary.Phrase best = null;
+    AutoPhraseDictionary.Node node = dictionary.getRoot( );
+    for (int i = start; i < slots.size( ); i++) {
+      char[] term = slots.get( i ).term;
+      node = dictionary.next( node, term, 0, term.length );
+      if (node == null) break;
+
+      AutoPhraseDictionary.Phrase phrase = node.getPhrase( );
+      if (phrase != null && (best == null || phrase.getPriority( ) >= best.getPriority( ))) {
+        best = phrase;
+      }
+    }
+
+    slot.resolved = true;
+    slot.phrase = best;
+    if (best != null) {
+      slot.phraseState = phraseState( start, best );
+    }
+  }
+
+  private State phraseState( int start, AutoPhraseDictionary.Phrase phrase ) {
+    Slot first = slots.get( start );
+    Slot last = slots.get( start + phrase.getLength( ) - 1 );
+
+    StringBuilder output = new StringBuilder( );
+    AutoPhraseDictionary.Source source = phrase.getSource( );
+    if (source.getOutputPrefix( ) != null) {
+      output.append( source.getOutputPrefix( ) );
+    }
+    for (int i = 0; i < phrase.getLength( ); i++) {
+      if (i > 0) output.append( replaceWhitespaceWith != null ? replaceWhitespaceWith.charValue( ) : ' ' );
+      output.append( slots.get( start + i ).term );
+    }
+
+    restoreState( first.state );
+    termAtt.setEmpty( ).append( output );
+    offsetAtt.setOffset( first.startOffset, last.endOffset );
+    posLenAtt.setPositionLength( phrase.getLength( ) );
+    if (source.getType( ) != null) {
+      typeAtt.setType( source.getType( ) );
+    }
+    return captureState( );
+  }
+
+  /**
+   * A token stream replaying the states buffered by the filter in its own {@link Mode}.
+   */
+  public final class SinkTokenStream extends TokenStream {
+    private final Cursor sinkCursor;
+
+    private SinkTokenStream( Mode mode ) {
+      super( AutoPhrasingTeeSinkTokenFilter.this.cloneAttributes( ) );
+      this.sinkCursor = new Cursor( this, mode );
+    }
+
+    @Override
+    public boolean incrementToken( ) throws IOException {
+      if (!exhausted) {
+        throw new IllegalStateException( "the AutoPhrasingTeeSinkTokenFilter must be consumed before its sinks" );
+      }
+      return sinkCursor.next( );
+    }
+
+    @Override
+    public void end( ) {
+      if (finalState != null) {
+        restoreState( finalState );
+      }
+    }
+
+    @Override
+    public void reset( ) {
+      sinkCursor.reset( );
+    }
+  }
+
+  // Walks the buffered slots and restores the states of one mode into a target stream.
+  private final class Cursor {
+    private final AttributeSource target;
+    private final PositionIncrementAttribute targetPosIncAtt;
+    private final PositionLengthAttribute targetPosLenAtt;
+    private final Mode mode;
+
+    private int next;
+    private Slot stacked;       // PHRASES_AND_TOKENS: phrase to emit after its first token
+    private int skippedPositions;  // PHRASE_SPANS: positions passed since the last phrase
+
+    Cursor( AttributeSource target, Mode mode ) {
+      this.target = target;
+      this.targetPosIncAtt = target.addAttribute( PositionIncrementAttribute.class );
+      this.targetPosLenAtt = target.addAttribute( PositionLengthAttribute.class );
+      this.mode = mode;
+    }
+
+    void reset( ) {
+      next = 0;
+      stacked = null;
+      skippedPositions = 0;
+    }
+
+    boolean next( ) throws IOException {
+      switch (mode) {
+        case PHRASES_AND_TOKENS: {
+          if (stacked != null) {
+            target.restoreState( stacked.phraseState );
+            targetPosIncAtt.setPositionIncrement( 0 );
+            stacked = null;
+            return true;
+          }
+          Slot slot = slot( next );
+          if (slot == null) return false;
+          next++;
+          target.restoreState( slot.state );
+          if (slot.phrase != null && !MultiAutoPhrasingTokenFilter.duplicatesToken( slot.phrase )) {
+            stacked = slot;
+          }
+          return true;
+        }
+
+        case PHRASES: {
+          Slot slot = slot( next );
+          if (slot == null) return false;
+          if (slot.phrase != null && !yields( next, slot.phrase )) {
+            target.restoreState( slot.phraseState );
+            targetPosLenAtt.setPositionLength( 1 );
+            next += slot.phrase.getLength( );
+          }
+          else {
+            target.restoreState( slot.state );
+            next++;
+          }
+          return true;
+        }
+
+        default: {
+          while (true) {
+            Slot slot = slot( next );
+            if (slot == null) return false;
+            next++;
+            skippedPositions += slot.posInc;
+            if (slot.phrase != null) {
+              target.restoreState( slot.phraseState );
+              targetPosIncAtt.setPositionIncrement( skippedPositions );
+              skippedPositions = 0;
+              return true;
+            }
+          }
+        }
+      }
+    }
+
+    // A phrase yields to a phrase of strictly higher priority starting inside it.
+    private boolean yields( int start, AutoPhraseDictionary.Phrase phrase ) throws IOException {
+      for (int i = 1; i < phrase.getLength( ); i++) {
+        AutoPhraseDictionary.Phrase overlapping = slot( start + i ).phrase;
+        if (overlapping != null && overlapping.getPriority( ) > phrase.getPriority( )) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static class Slot {
+    final State state;
+    final char[] term;
+    final int startOffset;
+    final int endOffset;
+    final int posInc;
+
+    boolean resolved;
+    AutoPhraseDictionary.Phrase phrase;
+    State phraseState;
+
+    Slot( State state, CharTermAttribute termAtt, OffsetAttribute offsetAtt, PositionIncrementAttribute posIncAtt ) {
+      this.state = state;
+      this.term = new char[ termAtt.length( ) ];
+      System.arraycopy( termAtt.buffer( ), 0, term, 0, termAtt.length( ) );
+      this.startOffset = offsetAtt.startOffset( );
+      this.endOffset = offsetAtt.endOffset( );
+      this.posInc = posIncAtt.getPositionIncrement( );
+    }
+  }
+}
@@ -57,12 +57,17 @@ public class AutoPhrasingTokenFilter extends TokenFilter {
   private int positionIncr = 0;
 	
   public AutoPhrasingTokenFilter( TokenStream input, CharArraySet phraseSet, boolean emitSingleTokens ) {
-    super(input);
-    	
     // Convert to CharArrayMap by iterating the char[] strings and
     // putting them into the CharArrayMap with Integer of the number
     // of tokens in the map: need this to determine when a phrase match is completed.
-    this.phraseMap = convertPhraseSet( phraseSet );
+    this( input, convertPhraseSet( phraseSet ), emitSingleTokens );
+  }
+
+  // Takes a phrase map made by convertPhraseSet, so that callers creating a filter per query
+  // convert the phrase set once. The filter does not modify the map.
+  AutoPhrasingTokenFilter( TokenStream input, CharArrayMap<CharArraySet> phraseMap, boolean emitSingleTokens ) {
+    super( input );
+    this.phraseMap = phraseMap;
     this.emitSingleTokens = emitSingleTokens;
   }
     
@@ -228,6 +233,8 @@ public class AutoPhrasingTokenFilter extends TokenFilter {
     	// System.out.println( "starting new phrase with " + new String( nextToken ) );
     	// does this add all of the set? if not need iterator loop
     	CharArraySet newSet = phraseMap.get(nextToken, 0, nextToken.length);
+    	// currentSetToCheck may be a set of the phrase map: add to a copy
+    	currentSetToCheck = new CharArraySet( currentSetToCheck, false );
     	Iterator<Object> phraseIt = newSet.iterator();
     	while (phraseIt != null && phraseIt.hasNext() ) {
           char[] phrase = (char[])phraseIt.next();
@@ -339,7 +346,7 @@ public class AutoPhrasingTokenFilter extends TokenFilter {
 	
 	
   private void emit( char[] token ) {
-	System.out.println( "emit: " + new String( token ) );
+	Log.debug( "emit: " + new String( token ) );
 	if (replaceWhitespaceWith != null) {
 		token = replaceWhiteSpace( token );
 	}
@@ -423,7 +430,7 @@ public class AutoPhrasingTokenFilter extends TokenFilter {
 	  }
   
 	
-  private CharArrayMap convertPhraseSet( CharArraySet phraseSet ) {
+  static CharArrayMap<CharArraySet> convertPhraseSet( CharArraySet phraseSet ) {
 	CharArrayMap<CharArraySet> phraseMap = new CharArrayMap( 100, false);
 	Iterator<Object> phraseIt = phraseSet.iterator( ); 
 	while (phraseIt != null && phraseIt.hasNext() ) {
@@ -446,7 +453,7 @@ public class AutoPhrasingTokenFilter extends TokenFilter {
 	return phraseMap;
   }
 	
-  private char[] getFirstTerm( char[] phrase ) {
+  private static char[] getFirstTerm( char[] phrase ) {
     int spNdx = 0;
 	while ( spNdx < phrase.length ) {
 	  if (isSpaceChar( phrase[ spNdx++ ])) {
@@ -459,7 +466,7 @@ public class AutoPhrasingTokenFilter extends TokenFilter {
 	return firstCh;
   }
 	
-  private boolean isSpaceChar( char ch ) {
+  private static boolean isSpaceChar( char ch ) {
 	return " \t\n\r".indexOf( ch ) >= 0;
   }
 	
@@ -9,6 +9,18 @@ import org.apache.lucene.analysis.util.ResourceLoader;
 import org.apache.lucene.analysis.util.ResourceLoaderAware;
 import org.apache.lucene.analysis.util.TokenFilterFactory;
 
+/**
+ * Factory for {@link AutoPhrasingTokenFilter}. With a <code>segmentation</code> argument the
+ * phrases are compiled into an {@link AutoPhraseDictionary} and segmented by a
+ * {@link MultiAutoPhrasingTokenFilter} with that policy instead, which resolves overlapping
+ * phrases within a bounded window rather than by replaying buffered tokens.
+ *
+ * <code>parallelChunkSize</code> and <code>parallelThreads</code> select a
+ * {@link ParallelAutoPhrasingTokenFilter}, as in {@link MultiAutoPhrasingTokenFilterFactory}.
+ * Its output equals the window based filter, so it requires <code>segmentation</code>: the
+ * replaying AutoPhrasingTokenFilter carries state across tokens that are in no phrase and
+ * cannot be cut into independent chunks.
+ */
 public class AutoPhrasingTokenFilterFactory extends TokenFilterFactory implements ResourceLoaderAware {
 	
   private CharArraySet phraseSets;
@@ -18,11 +30,27 @@ public class AutoPhrasingTokenFilterFactory extends TokenFilterFactory implement
     
   private String replaceWhitespaceWith = null;
 
+  private final MultiAutoPhrasingTokenFilter.Segmentation segmentation;
+  private AutoPhraseDictionary dictionary;
+
+  private final int parallelChunkSize;
+  private final int parallelThreads;
+
   public AutoPhrasingTokenFilterFactory(Map<String, String> initArgs) {
     super( initArgs );
     phraseSetFiles = get(initArgs, "phrases");
     ignoreCase = getBoolean( initArgs, "ignoreCase", false);
     emitSingleTokens = getBoolean( initArgs, "includeTokens", false );
+    segmentation = initArgs.containsKey( "segmentation" )
+                 ? MultiAutoPhrasingTokenFilterFactory.getSegmentation( initArgs ) : null;
+    parallelChunkSize = getInt( initArgs, "parallelChunkSize", 0 );
+    parallelThreads = getInt( initArgs, "parallelThreads", Runtime.getRuntime( ).availableProcessors( ) );
+    if (parallelChunkSize < 0 || parallelThreads < 1) {
+      throw new IllegalArgumentException( "parallelChunkSize must be >= 0 and parallelThreads >= 1" );
+    }
+    if (parallelChunkSize > 0 && segmentation == null) {
+      throw new IllegalArgumentException( "parallelChunkSize requires segmentation" );
+    }
 	    
 	String replaceWhitespaceArg = initArgs.get( "replaceWhitespaceWith" );
 	if (replaceWhitespaceArg != null) {
@@ -34,13 +62,35 @@ public class AutoPhrasingTokenFilterFactory extends TokenFilterFactory implement
   @Override
   public void inform(ResourceLoader loader) throws IOException {
     if (phraseSetFiles != null) {
-	  phraseSets = getWordSet(loader, phraseSetFiles, ignoreCase);
+	  phraseSets = AutoPhraseDictionary.loadPhraseSet( loader, phraseSetFiles, ignoreCase );
+	  if (segmentation != null) {
+	    dictionary = AutoPhraseDictionary.fromPhraseSet( phraseSets, ignoreCase );
+	  }
 	}
   }
 	
 	
   @Override
   public TokenStream create( TokenStream input ) {
+    if (dictionary != null && parallelChunkSize > 0) {
+      ParallelAutoPhrasingTokenFilter parallelFilter = new ParallelAutoPhrasingTokenFilter(
+          input, dictionary, emitSingleTokens, MultiAutoPhrasingTokenFilterFactory.getPool( parallelThreads ), parallelChunkSize );
+      if (replaceWhitespaceWith != null) {
+        parallelFilter.setReplaceWhitespaceWith( new Character( replaceWhitespaceWith.charAt( 0 )) );
+      }
+      parallelFilter.setSegmentation( segmentation );
+      return parallelFilter;
+    }
+
+    if (dictionary != null) {
+      MultiAutoPhrasingTokenFilter segmentingFilter = new MultiAutoPhrasingTokenFilter( input, dictionary, emitSingleTokens );
+      if (replaceWhitespaceWith != null) {
+        segmentingFilter.setReplaceWhitespaceWith( new Character( replaceWhitespaceWith.charAt( 0 )) );
+      }
+      segmentingFilter.setSegmentation( segmentation );
+      return segmentingFilter;
+    }
+
     AutoPhrasingTokenFilter autoPhraseFilter = new AutoPhrasingTokenFilter( input, phraseSets, emitSingleTokens );
 	if (replaceWhitespaceWith != null) {
 	  autoPhraseFilter.setReplaceWhitespaceWith( new Character( replaceWhitespaceWith.charAt( 0 )) );
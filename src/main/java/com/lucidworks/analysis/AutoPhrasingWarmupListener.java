@@ -0,0 +1,284 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.util.WordlistLoader;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrResourceLoader;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms the autophrasing path before a searcher serves requests, so that a node joins the load
+ * balancer at steady state speed instead of after its first few thousand queries. On each
+ * firstSearcher or newSearcher event, within a time budget:
+ * <ol>
+ *  <li>every phrase of each warmed dictionary is walked through its token trie, which loads
+ *      named dictionaries into the parser's cache and touches all of their memory;</li>
+ *  <li>the sample queries are rewritten by the {@link AutoPhrasingQParserPlugin} for each
+ *      dictionary, which fills its rewrite cache. With <code>fuzzy</code> or
+ *      <code>canonical</code> set, they are also rewritten with those local params, so that
+ *      e.g. <code>{!autophrasingParser canonical=true}</code> filter queries hit the cache.</li>
+ * </ol>
+ * On firstSearcher only, since neither the JIT compiler nor the analyzers start cold again on a
+ * commit:
+ * <ol>
+ *  <li>the sample texts are run through the index and query analyzers of the given field types,
+ *      which contain the auto phrasing filters;</li>
+ *  <li>for <code>passes</code> &gt; 1, queries and texts are replayed, bypassing the rewrite
+ *      cache, to give the JIT compiler enough invocations.</li>
+ * </ol>
+ *
+ * <pre>
+ * &lt;listener event="firstSearcher" class="com.lucidworks.analysis.AutoPhrasingWarmupListener"&gt;
+ *   &lt;str name="parser"&gt;autophrasingParser&lt;/str&gt;
+ *   &lt;str name="queries"&gt;warmup-queries.txt&lt;/str&gt;
+ *   &lt;str name="texts"&gt;warmup-texts.txt&lt;/str&gt;
+ *   &lt;str name="fieldTypes"&gt;text_autophrase&lt;/str&gt;
+ *   &lt;str name="dictionaries"&gt;tenantA,tenantB&lt;/str&gt;
+ *   &lt;int name="timeBudgetMs"&gt;10000&lt;/int&gt;
+ *   &lt;bool name="canonical"&gt;true&lt;/bool&gt;
+ *   &lt;int name="passes"&gt;20&lt;/int&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ *
+ * Warming failures are logged and never keep the searcher from opening.
+ */
+public class AutoPhrasingWarmupListener extends AbstractSolrEventListener {
+
+  private static final Logger Log = LoggerFactory.getLogger( AutoPhrasingWarmupListener.class );
+
+  private String parserName = "autophrasingParser";
+  private String queryFiles;
+  private String textFiles;
+  private final List<String> fieldTypes = new ArrayList<String>( );
+  private final List<String> dictionaries = new ArrayList<String>( );
+  private long timeBudgetMs = 10000;
+  private int passes = 1;
+  private boolean fuzzy = false;
+  private boolean canonical = false;
+
+  // sample files, read on the first event: listeners are not ResourceLoaderAware
+  private List<String> queries;
+  private List<String> texts;
+
+  public AutoPhrasingWarmupListener( SolrCore core ) {
+    super( core );
+  }
+
+  @Override
+  public void init( NamedList args ) {
+    super.init( args );
+    SolrParams params = SolrParams.toSolrParams( args );
+    parserName = params.get( "parser", parserName );
+    queryFiles = params.get( "queries" );
+    textFiles = params.get( "texts" );
+    fieldTypes.addAll( splitList( params.get( "fieldTypes" )));
+    dictionaries.addAll( splitList( params.get( "dictionaries" )));
+    timeBudgetMs = params.getInt( "timeBudgetMs", (int)timeBudgetMs );
+    passes = Math.max( 1, params.getInt( "passes", passes ));
+    fuzzy = params.getBool( "fuzzy", fuzzy );
+    canonical = params.getBool( "canonical", canonical );
+  }
+
+  @Override
+  public void newSearcher( SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher ) {
+    long start = System.nanoTime( );
+    Stats stats = new Stats( );
+    try {
+      loadSamples( );
+
+      QParserPlugin plugin = getCore( ).getQueryPlugin( parserName );
+      if (!(plugin instanceof AutoPhrasingQParserPlugin)) {
+        Log.warn( "queryParser '" + parserName + "' is not an AutoPhrasingQParserPlugin, nothing to warm" );
+        return;
+      }
+      boolean firstSearcher = currentSearcher == null;
+      List<Analyzer> analyzers = firstSearcher ? analyzers( newSearcher ) : Collections.<Analyzer>emptyList( );
+      warm( (AutoPhrasingQParserPlugin)plugin, analyzers, firstSearcher, start, stats );
+    }
+    catch (Exception e) {
+      Log.warn( "autophrase warmup failed", e );
+    }
+    finally {
+      stats.nanos = System.nanoTime( ) - start;
+      Log.info( "autophrase warmup: " + stats );
+    }
+  }
+
+  // Warms until the time budget counted from start is spent; the replay passes only run on
+  // the first searcher.
+  void warm( AutoPhrasingQParserPlugin autophraser, List<Analyzer> analyzers, boolean firstSearcher,
+             long start, Stats stats ) throws IOException {
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos( timeBudgetMs );
+
+    // the default dictionary, then the named ones
+    List<SolrParams> dictionaryParams = new ArrayList<SolrParams>( );
+    dictionaryParams.add( new ModifiableSolrParams( ));
+    for (String name : dictionaries) {
+      ModifiableSolrParams params = new ModifiableSolrParams( );
+      params.set( AutoPhrasingQParserPlugin.REQUEST_DICT_PARAM, name );
+      dictionaryParams.add( params );
+    }
+
+    // the default flags, then each combination of the warmed local params
+    List<SolrParams> localParams = new ArrayList<SolrParams>( );
+    localParams.add( null );
+    for (int flags = 1; flags < 4; flags++) {
+      boolean fuzzyFlag = (flags & 1) != 0;
+      boolean canonicalFlag = (flags & 2) != 0;
+      if ((fuzzyFlag && !fuzzy) || (canonicalFlag && !canonical)) continue;
+      // unset flags keep the parser's defaults, as in the requests being warmed for
+      ModifiableSolrParams local = new ModifiableSolrParams( );
+      if (fuzzyFlag) local.set( "fuzzy", true );
+      if (canonicalFlag) local.set( "canonical", true );
+      localParams.add( local );
+    }
+
+    for (SolrParams params : dictionaryParams) {
+      touch( autophraser.getDictionary( null, params ), deadline, stats );
+      for (SolrParams local : localParams) {
+        for (String query : queries) {
+          if (System.nanoTime( ) > deadline) break;
+          autophraser.rewrite( query, local, params );
+          stats.queries++;
+        }
+      }
+    }
+
+    int replays = firstSearcher ? passes : 1;
+    for (int pass = 0; pass < replays && System.nanoTime( ) <= deadline; pass++) {
+      if (pass > 0) {
+        for (SolrParams params : dictionaryParams) {
+          for (SolrParams local : localParams) {
+            for (String query : queries) {
+              if (System.nanoTime( ) > deadline) break;
+              autophraser.rewriteUncached( query, local, params );
+              stats.queries++;
+            }
+          }
+        }
+      }
+      for (Analyzer analyzer : analyzers) {
+        for (String text : texts) {
+          if (System.nanoTime( ) > deadline) break;
+          analyze( analyzer, text );
+          stats.texts++;
+        }
+      }
+    }
+
+    stats.budgetExhausted = System.nanoTime( ) > deadline;
+  }
+
+  // sets the sample queries and texts instead of reading them from the configured files
+  synchronized void setSamples( List<String> queries, List<String> texts ) {
+    this.queries = queries;
+    this.texts = texts;
+  }
+
+  private synchronized void loadSamples( ) throws IOException {
+    if (queries != null) return;
+    SolrResourceLoader loader = getCore( ).getResourceLoader( );
+    texts = readLines( loader, textFiles );
+    queries = readLines( loader, queryFiles );
+  }
+
+  private static List<String> readLines( SolrResourceLoader loader, String files ) throws IOException {
+    List<String> lines = new ArrayList<String>( );
+    for (String file : splitList( files )) {
+      InputStream in = loader.openResource( file );
+      try {
+        lines.addAll( WordlistLoader.getLines( in, StandardCharsets.UTF_8 ));
+      }
+      finally {
+        in.close( );
+      }
+    }
+    return lines;
+  }
+
+  private static List<String> splitList( String list ) {
+    if (list == null) return Collections.emptyList( );
+    List<String> items = new ArrayList<String>( );
+    for (String item : list.split( "," )) {
+      if (item.trim( ).length( ) > 0) {
+        items.add( item.trim( ));
+      }
+    }
+    return items;
+  }
+
+  // Walks every phrase through the trie, touching each node of the dictionary.
+  private static void touch( AutoPhraseDictionary dictionary, long deadline, Stats stats ) {
+    if (dictionary == null) return;
+    for (AutoPhraseDictionary.Phrase phrase : dictionary.getPhrases( )) {
+      if ((stats.phrases & 1023) == 0 && System.nanoTime( ) > deadline) return;
+      AutoPhraseDictionary.Node node = dictionary.getRoot( );
+      for (char[] term : AutoPhraseDictionary.splitTerms( phrase.getText( ))) {
+        node = dictionary.next( node, term, 0, term.length );
+        if (node == null) break;
+      }
+      stats.phrases++;
+    }
+  }
+
+  private List<Analyzer> analyzers( SolrIndexSearcher searcher ) {
+    List<Analyzer> analyzers = new ArrayList<Analyzer>( );
+    for (String name : fieldTypes) {
+      FieldType fieldType = searcher.getSchema( ).getFieldTypeByName( name );
+      if (fieldType == null) {
+        Log.warn( "unknown field type '" + name + "', its analyzers are not warmed" );
+        continue;
+      }
+      analyzers.add( fieldType.getIndexAnalyzer( ));
+      if (fieldType.getQueryAnalyzer( ) != fieldType.getIndexAnalyzer( )) {
+        analyzers.add( fieldType.getQueryAnalyzer( ));
+      }
+    }
+    return analyzers;
+  }
+
+  private static void analyze( Analyzer analyzer, String text ) throws IOException {
+    TokenStream ts = analyzer.tokenStream( "autophrase_warmup", text );
+    try {
+      ts.reset( );
+      while (ts.incrementToken( )) {
+        // consume
+      }
+      ts.end( );
+    }
+    finally {
+      ts.close( );
+    }
+  }
+
+  static class Stats {
+    int phrases;
+    int queries;
+    int texts;
+    long nanos;
+    boolean budgetExhausted;
+
+    @Override
+    public String toString( ) {
+      return phrases + " phrases touched, " + queries + " queries rewritten, " + texts + " texts analyzed in "
+             + TimeUnit.NANOSECONDS.toMillis( nanos ) + " ms" + (budgetExhausted ? " (time budget exhausted)" : "");
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package com.lucidworks.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.LevenshteinAutomata;
+
+/**
+ * Finds auto phrases in a token sequence while tolerating misspelled tokens. Each query token
+ * is turned into a Levenshtein automaton which is intersected with the sorted edges of the
+ * current {@link AutoPhraseDictionary} trie node, so only dictionary tokens reachable from the
+ * phrase prefix matched so far are ever compared, and whole branches of the sorted edge list
+ * are skipped as soon as the automaton rejects their common prefix.
+ *
+ * Work per query token is bounded: tokens shorter than <code>minTermLength</code> must match
+ * exactly, and at most <code>maxExpansions</code> fuzzy alternatives are followed per token.
+ * Alternatives of consecutive tokens multiply, so the work per query is bounded as well: at
+ * most <code>maxTotalExpansions</code> fuzzy alternatives are followed over a whole call to
+ * {@link #match(List)}, after which the remaining tokens are only matched exactly.
+ *
+ * Instances are immutable and thread safe.
+ */
+public class FuzzyAutoPhraseMatcher {
+
+  private final AutoPhraseDictionary dictionary;
+  private final int maxEdits;
+  private final int minTermLength;
+  private final int maxExpansions;
+  private final int maxTotalExpansions;
+  private final boolean transpositions;
+
+  /**
+   * @param maxEdits maximum edit distance allowed per token (at most 2)
+   * @param minTermLength tokens shorter than this are only matched exactly
+   * @param maxExpansions maximum number of fuzzy alternatives followed per token
+   */
+  public FuzzyAutoPhraseMatcher( AutoPhraseDictionary dictionary, int maxEdits, int minTermLength,
+                                 int maxExpansions, boolean transpositions ) {
+    this( dictionary, maxEdits, minTermLength, maxExpansions, Integer.MAX_VALUE, transpositions );
+  }
+
+  /**
+   * @param maxEdits maximum edit distance allowed per token (at most 2)
+   * @param minTermLength tokens shorter than this are only matched exactly
+   * @param maxExpansions maximum number of fuzzy alternatives followed per token
+   * @param maxTotalExpansions maximum number of fuzzy alternatives followed per call to
+   * {@link #match(List)}
+   */
+  public FuzzyAutoPhraseMatcher( AutoPhraseDictionary dictionary, int maxEdits, int minTermLength,
+                                 int maxExpansions, int maxTotalExpansions, boolean transpositions ) {
+    if (maxEdits < 0 || maxEdits > LevenshteinAutomata.MAXIMUM_SUPPORTED_DISTANCE) {
+      throw new IllegalArgumentException( "maxEdits must be between 0 and "
+                                          + LevenshteinAutomata.MAXIMUM_SUPPORTED_DISTANCE + ": " + maxEdits );
+    }
+    if (maxTotalExpansions < 0) {
+      throw new IllegalArgumentException( "maxTotalExpansions must be >= 0: " + maxTotalExpansions );
+    }
+    this.dictionary = dictionary;
+    this.maxEdits = maxEdits;
+    this.minTermLength = minTermLength;
+    this.maxExpansions = maxExpansions;
+    this.maxTotalExpansions = maxTotalExpansions;
+    this.transpositions = transpositions;
+  }
+
+  /**
+   * Segments the tokens into phrases and single tokens. At every position the longest phrase
+   * is taken, preferring the one with the fewest edits; tokens that do not start a phrase
+   * are passed through unchanged.
+   *
+   * @return one entry per output unit: either a {@link AutoPhraseDictionary.Phrase} or the
+   * original token as a <code>char[]</code>
+   */
+  public List<Object> match( List<char[]> tokens ) {
+    CharacterRunAutomaton[] automata = new CharacterRunAutomaton[ tokens.size( ) ];
+    List<Object> output = new ArrayList<Object>( );
+    Budget budget = new Budget( maxTotalExpansions );
+    int pos = 0;
+    while (pos < tokens.size( )) {
+      Match best = new Match( );
+      search( tokens, automata, pos, dictionary.getRoot( ), 0, 0, best, budget );
+      if (best.phrase != null) {
+        output.add( best.phrase );
+        pos += best.phrase.getLength( );
+      }
+      else {
+        output.add( tokens.get( pos++ ) );
+      }
+    }
+    return output;
+  }
+
+  private void search( List<char[]> tokens, CharacterRunAutomaton[] automata, int pos,
+                       AutoPhraseDictionary.Node node, int length, int edits, Match best, Budget budget ) {
+    AutoPhraseDictionary.Phrase phrase = node.getPhrase( );
+    if (phrase != null && length > 0 && best.isWorseThan( length, edits )) {
+      best.phrase = phrase;
+      best.length = length;
+      best.edits = edits;
+    }
+    if (pos + length >= tokens.size( ) || node.isLeaf( )) return;
+
+    char[] token = tokens.get( pos + length );
+    AutoPhraseDictionary.Node exact = dictionary.next( node, token, 0, token.length );
+    if (exact != null) {
+      search( tokens, automata, pos, exact, length + 1, edits, best, budget );
+    }
+
+    if (maxEdits == 0 || token.length < minTermLength || budget.remaining == 0) return;
+
+    int index = pos + length;
+    if (automata[index] == null) {
+      LevenshteinAutomata lev = new LevenshteinAutomata( new String( token ), transpositions );
+      automata[index] = new CharacterRunAutomaton( lev.toAutomaton( maxEdits ) );
+    }
+
+    AutoPhraseDictionary.Edges edges = node.getSortedEdges( );
+    List<Integer> candidates = new ArrayList<Integer>( );
+    intersect( edges.tokens, 0, edges.size( ), 0, automata[index], automata[index].getInitialState( ), candidates );
+    for (Integer candidate : candidates) {
+      AutoPhraseDictionary.Node target = edges.targets[ candidate.intValue( ) ];
+      if (target == exact) continue;
+      if (budget.remaining == 0) return;
+      budget.remaining--;
+      int distance = editDistance( token, edges.tokens[ candidate.intValue( ) ] );
+      search( tokens, automata, pos, target, length + 1, edits + distance, best, budget );
+    }
+  }
+
+  // Collects the indexes of the tokens in keys[lo, hi) accepted by the automaton. All keys in the
+  // range share their first 'depth' chars, which drove the automaton to 'state'.
+  private void intersect( char[][] keys, int lo, int hi, int depth, CharacterRunAutomaton automaton,
+                          int state, List<Integer> accepted ) {
+    if (lo >= hi) return;
+
+    int i = lo;
+    if (keys[i].length == depth) {
+      // sorted order puts the key equal to the shared prefix first
+      if (automaton.isAccept( state ) && accepted.size( ) < maxExpansions) {
+        accepted.add( i );
+      }
+      i++;
+    }
+
+    while (i < hi && accepted.size( ) < maxExpansions) {
+      int codePoint = Character.codePointAt( keys[i], depth );
+      int charCount = Character.charCount( codePoint );
+      int groupEnd = groupEnd( keys, i, hi, depth, charCount );
+      int next = automaton.step( state, codePoint );
+      if (next != -1) {
+        intersect( keys, i, groupEnd, depth + charCount, automaton, next, accepted );
+      }
+      i = groupEnd;
+    }
+  }
+
+  // Returns the end of the run of keys starting at 'from' that have the same chars in
+  // [depth, depth + count). Keys are sorted, so the run is found by binary search.
+  private int groupEnd( char[][] keys, int from, int hi, int depth, int count ) {
+    int low = from + 1;
+    int high = hi - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (sameChars( keys[from], keys[mid], depth, count )) low = mid + 1;
+      else high = mid - 1;
+    }
+    return low;
+  }
+
+  private boolean sameChars( char[] a, char[] b, int depth, int count ) {
+    if (b.length < depth + count) return false;
+    for (int i = depth; i < depth + count; i++) {
+      if (a[i] != b[i]) return false;
+    }
+    return true;
+  }
+
+  // Damerau-Levenshtein distance of two short tokens, only computed for accepted candidates.
+  static int editDistance( char[] a, char[] b ) {
+    int[][] d = new int[ a.length + 1 ][ b.length + 1 ];
+    for (int i = 0; i <= a.length; i++) d[i][0] = i;
+    for (int j = 0; j <= b.length; j++) d[0][j] = j;
+    for (int i = 1; i <= a.length; i++) {
+      for (int j = 1; j <= b.length; j++) {
+        int cost = a[i - 1] == b[j - 1] ? 0 : 1;
+        d[i][j] = Math.min( Math.min( d[i - 1][j] + 1, d[i][j - 1] + 1 ), d[i - 1][j - 1] + cost );
+        if (i > 1 && j > 1 && a[i - 1] == b[j - 2] && a[i - 2] == b[j - 1]) {
+          d[i][j] = Math.min( d[i][j], d[i - 2][j - 2] + cost );
+        }
+      }
+    }
+    return d[a.length][b.length];
+  }
+
+  public int getMaxEdits( ) {
+    return maxEdits;
+  }
+
+  public int getMinTermLength( ) {
+    return minTermLength;
+  }
+
+  public int getMaxTotalExpansions( ) {
+    return maxTotalExpansions;
+  }
+
+  // fuzzy alternatives still allowed in the current call to match
+  private static class Budget {
+    int remaining;
+
+    Budget( int remaining ) {
+      this.remaining = remaining;
+    }
+  }
+
+  private static class Match {
+    AutoPhraseDictionary.Phrase phrase;
+    int length;
+    int edits;
+
+    boolean isWorseThan( int otherLength, int otherEdits ) {
+      return phrase == null || otherLength > length || (otherLength == length && otherEdits < edits);
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+
+/**
+ * Auto phrasing filter that resolves several phrase dictionaries in a single pass. All
+ * dictionaries are compiled into one {@link AutoPhraseDictionary}, so the stream is buffered and
+ * scanned once regardless of how many phrase lists are configured.
+ *
+ * Overlapping phrases are resolved with explicit rules rather than by filter order. By default
+ * ({@link Segmentation#PRIORITY}):
+ * <ol>
+ *  <li>among the phrases starting at the current token, the one with the highest dictionary
+ *      priority wins, then the longest one;</li>
+ *  <li>a phrase yields to a phrase of strictly higher priority that starts inside it. The
+ *      current token is then passed through and matching resumes at the next token.</li>
+ * </ol>
+ * Other policies can be chosen with {@link #setSegmentation}; all of them only look at the
+ * lookahead window, so they take constant time per token.
+ *
+ * Phrase tokens span the offsets of the tokens they replace. If single tokens are included, the
+ * phrase token is stacked on the position of its first token with a position length equal to the
+ * number of replaced tokens, and overlapping phrases are all emitted, since they no longer compete
+ * for the same positions; a one token phrase without an output prefix is not stacked on the
+ * token it equals. Otherwise the replaced tokens are dropped and the phrase token takes a
+ * single position.
+ */
+public final class MultiAutoPhrasingTokenFilter extends TokenFilter {
+
+  /**
+   * How overlapping phrases are chosen when single tokens are not included. With
+   * includeTokens every phrase is emitted, so the policy does not apply.
+   */
+  public enum Segmentation {
+    /** highest priority, then longest; a phrase yields to a higher priority phrase inside it */
+    PRIORITY,
+    /** the longest phrase starting at the current token, regardless of priority */
+    LEFTMOST_LONGEST,
+    /** the segmentation of the window that covers the most tokens with phrases */
+    MAX_COVERAGE,
+    /** the segmentation of the window with the highest sum of phrase weight times length */
+    WEIGHTED
+  }
+
+  private final CharTermAttribute termAtt = addAttribute( CharTermAttribute.class );
+  private final OffsetAttribute offsetAtt = addAttribute( OffsetAttribute.class );
+  private final PositionIncrementAttribute posIncAtt = addAttribute( PositionIncrementAttribute.class );
+  private final PositionLengthAttribute posLenAtt = addAttribute( PositionLengthAttribute.class );
+  private final TypeAttribute typeAtt = addAttribute( TypeAttribute.class );
+
+  private final AutoPhraseDictionary dictionary;
+
+  // If true - emit single tokens as well as auto-phrases
+  private final boolean emitSingleTokens;
+
+  private Character replaceWhitespaceWith = null;
+
+  private AutoPhraseSegmenter segmenter;
+
+  // terms of the window, for the segmenter
+  private char[][] windowTerms = new char[ 0 ][];
+
+  // Tokens read from the input that have not been emitted yet, in a ring buffer
+  // starting at windowHead. Holds at most 2 * maxPhraseLength - 1 tokens: enough
+  // to see every phrase that overlaps the candidate starting at the head of the window.
+  private BufferedToken[] window = new BufferedToken[ 8 ];
+  private int windowHead = 0;
+  private int windowCount = 0;
+
+  // Output states waiting to be emitted
+  private final ArrayDeque<State> pending = new ArrayDeque<State>( );
+
+  private boolean exhausted = false;
+
+  public MultiAutoPhrasingTokenFilter( TokenStream input, AutoPhraseDictionary dictionary, boolean emitSingleTokens ) {
+    super( input );
+    this.dictionary = dictionary;
+    this.emitSingleTokens = emitSingleTokens;
+    this.segmenter = new AutoPhraseSegmenter( dictionary, Segmentation.PRIORITY );
+  }
+
+  public void setReplaceWhitespaceWith( Character replaceWhitespaceWith ) {
+    this.replaceWhitespaceWith = replaceWhitespaceWith;
+  }
+
+  public void setSegmentation( Segmentation segmentation ) {
+    this.segmenter = new AutoPhraseSegmenter( dictionary, segmentation );
+  }
+
+  @Override
+  public void reset( ) throws IOException {
+    super.reset( );
+    clearWindow( );
+    pending.clear( );
+    exhausted = false;
+  }
+
+  @Override
+  public boolean incrementToken( ) throws IOException {
+    while (true) {
+      if (!pending.isEmpty( )) {
+        restoreState( pending.removeFirst( ) );
+        return true;
+      }
+
+      fillWindow( );
+      if (windowCount == 0) {
+        return false;
+      }
+
+      AutoPhraseDictionary.Phrase phrase = selectPhrase( );
+      if (phrase == null) {
+        restoreState( removeFirstToken( ).state );
+        return true;
+      }
+
+      queuePhrase( phrase );
+    }
+  }
+
+  private void fillWindow( ) throws IOException {
+    int windowSize = segmenter.getWindowSize( );
+    while (!exhausted && windowCount < windowSize) {
+      if (!input.incrementToken( )) {
+        exhausted = true;
+        break;
+      }
+      addToken( new BufferedToken( captureState( ), termAtt, offsetAtt ) );
+    }
+  }
+
+  // the i-th token of the window
+  private BufferedToken token( int i ) {
+    return window[ (windowHead + i) % window.length ];
+  }
+
+  private void addToken( BufferedToken token ) {
+    if (windowCount == window.length) {
+      BufferedToken[] grown = new BufferedToken[ window.length * 2 ];
+      for (int i = 0; i < windowCount; i++) {
+        grown[ i ] = token( i );
+      }
+      window = grown;
+      windowHead = 0;
+    }
+    window[ (windowHead + windowCount) % window.length ] = token;
+    windowCount++;
+  }
+
+  private BufferedToken removeFirstToken( ) {
+    BufferedToken first = window[ windowHead ];
+    window[ windowHead ] = null;
+    windowHead = (windowHead + 1) % window.length;
+    windowCount--;
+    return first;
+  }
+
+  private void clearWindow( ) {
+    while (windowCount > 0) {
+      removeFirstToken( );
+    }
+    windowHead = 0;
+  }
+
+  // Returns the phrase to emit for the token at the head of the window, or null
+  // if the head token should be passed through.
+  private AutoPhraseDictionary.Phrase selectPhrase( ) {
+    int size = windowCount;
+    if (windowTerms.length < size) {
+      windowTerms = new char[ size ][];
+    }
+    for (int i = 0; i < size; i++) {
+      windowTerms[ i ] = token( i ).term;
+    }
+
+    if (emitSingleTokens) {
+      return segmenter.bestPhraseAt( windowTerms, 0, size );
+    }
+    return segmenter.selectPhrase( windowTerms, 0, size );
+  }
+
+  private void queuePhrase( AutoPhraseDictionary.Phrase phrase ) {
+    BufferedToken first = token( 0 );
+    BufferedToken last = token( phrase.getLength( ) - 1 );
+
+    StringBuilder output = new StringBuilder( );
+    AutoPhraseDictionary.Source source = phrase.getSource( );
+    if (source.getOutputPrefix( ) != null) {
+      output.append( source.getOutputPrefix( ) );
+    }
+    for (int i = 0; i < phrase.getLength( ); i++) {
+      if (i > 0) output.append( replaceWhitespaceWith != null ? replaceWhitespaceWith.charValue( ) : ' ' );
+      output.append( token( i ).term );
+    }
+
+    restoreState( first.state );
+    termAtt.setEmpty( ).append( output );
+    offsetAtt.setOffset( first.startOffset, last.endOffset );
+    // the phrase only spans several positions if its single tokens are kept under it
+    posLenAtt.setPositionLength( emitSingleTokens ? phrase.getLength( ) : 1 );
+    if (source.getType( ) != null) {
+      typeAtt.setType( source.getType( ) );
+    }
+
+    if (emitSingleTokens) {
+      // stack the phrase on its first token; the remaining tokens stay in the
+      // window since they may start phrases of their own
+      posIncAtt.setPositionIncrement( 0 );
+      State phraseState = captureState( );
+      pending.add( removeFirstToken( ).state );
+      if (!duplicatesToken( phrase )) {
+        pending.add( phraseState );
+      }
+    }
+    else {
+      pending.add( captureState( ) );
+      for (int i = 0; i < phrase.getLength( ); i++) {
+        removeFirstToken( );
+      }
+    }
+  }
+
+  /**
+   * @return true if the phrase token would repeat the single token it is stacked on: a one
+   * token phrase without an output prefix. Such phrases are not stacked, so that the term is
+   * not counted twice.
+   */
+  static boolean duplicatesToken( AutoPhraseDictionary.Phrase phrase ) {
+    return phrase.getLength( ) == 1 && phrase.getSource( ).getOutputPrefix( ) == null;
+  }
+
+  private static class BufferedToken {
+    final State state;
+    final char[] term;
+    final int startOffset;
+    final int endOffset;
+
+    BufferedToken( State state, CharTermAttribute termAtt, OffsetAttribute offsetAtt ) {
+      this.state = state;
+      this.term = new char[ termAtt.length( ) ];
+      System.arraycopy( termAtt.buffer( ), 0, term, 0, termAtt.length( ) );
+      this.startOffset = offsetAtt.startOffset( );
+      this.endOffset = offsetAtt.endOffset( );
+    }
+  }
+}
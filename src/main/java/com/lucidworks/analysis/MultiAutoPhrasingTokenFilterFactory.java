@@ -0,0 +1,162 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.analysis.util.ResourceLoader;
+import org.apache.lucene.analysis.util.ResourceLoaderAware;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+
+/**
+ * Factory for {@link MultiAutoPhrasingTokenFilter}. Each dictionary is declared by name in the
+ * <code>dictionaries</code> argument and configured with arguments prefixed by that name:
+ *
+ * <pre>
+ * &lt;filter class="com.lucidworks.analysis.MultiAutoPhrasingTokenFilterFactory"
+ *         dictionaries="brands,products"
+ *         brands.phrases="brands.txt" brands.priority="10" brands.prefix="brand_" brands.type="BRAND"
+ *         products.phrases="products.txt"
+ *         includeTokens="false" replaceWhitespaceWith="_" segmentation="max_coverage" /&gt;
+ * </pre>
+ *
+ * <code>segmentation</code> selects a {@link MultiAutoPhrasingTokenFilter.Segmentation} policy by
+ * name (priority, leftmost_longest, max_coverage or weighted); the default is priority.
+ *
+ * All dictionaries are compiled into one {@link AutoPhraseDictionary} when the resources are
+ * loaded; the filters created by this factory share it.
+ *
+ * With <code>parallelChunkSize</code> set, the factory creates a
+ * {@link ParallelAutoPhrasingTokenFilter} instead, which matches chunks of that many tokens on a
+ * fork/join pool of <code>parallelThreads</code> threads (default: the number of processors). The
+ * output is the same; it only pays off for very long field values. Factories with the same
+ * <code>parallelThreads</code> share one pool for the life of the JVM, so reloading a core does not
+ * leave pools behind.
+ */
+public class MultiAutoPhrasingTokenFilterFactory extends TokenFilterFactory implements ResourceLoaderAware {
+
+  // shared fork/join pools by parallelism; analysis factories are not tied to the core lifecycle
+  private static final Map<Integer, ForkJoinPool> POOLS = new HashMap<Integer, ForkJoinPool>( );
+
+  private final List<DictionaryConfig> dictionaryConfigs = new ArrayList<DictionaryConfig>( );
+  private final boolean ignoreCase;
+  private final boolean emitSingleTokens;
+  private final MultiAutoPhrasingTokenFilter.Segmentation segmentation;
+
+  private final int parallelChunkSize;
+  private final int parallelThreads;
+
+  private String replaceWhitespaceWith = null;
+
+  private AutoPhraseDictionary dictionary;
+
+  public MultiAutoPhrasingTokenFilterFactory( Map<String, String> initArgs ) {
+    super( initArgs );
+    ignoreCase = getBoolean( initArgs, "ignoreCase", false );
+    emitSingleTokens = getBoolean( initArgs, "includeTokens", false );
+    replaceWhitespaceWith = get( initArgs, "replaceWhitespaceWith" );
+    segmentation = getSegmentation( initArgs );
+    parallelChunkSize = getInt( initArgs, "parallelChunkSize", 0 );
+    parallelThreads = getInt( initArgs, "parallelThreads", Runtime.getRuntime( ).availableProcessors( ) );
+    if (parallelChunkSize < 0 || parallelThreads < 1) {
+      throw new IllegalArgumentException( "parallelChunkSize must be >= 0 and parallelThreads >= 1" );
+    }
+
+    String names = require( initArgs, "dictionaries" );
+    for (String name : names.split( "," )) {
+      name = name.trim( );
+      if (name.length( ) == 0) continue;
+
+      DictionaryConfig config = new DictionaryConfig( );
+      config.name = name;
+      config.phraseFiles = require( initArgs, name + ".phrases" );
+      config.priority = getInt( initArgs, name + ".priority", 0 );
+      config.prefix = get( initArgs, name + ".prefix" );
+      config.type = get( initArgs, name + ".type" );
+      dictionaryConfigs.add( config );
+    }
+
+    if (dictionaryConfigs.isEmpty( )) {
+      throw new IllegalArgumentException( "At least one dictionary must be configured" );
+    }
+    if (!initArgs.isEmpty( )) {
+      throw new IllegalArgumentException( "Unknown parameters: " + initArgs );
+    }
+  }
+
+  @Override
+  public void inform( ResourceLoader loader ) throws IOException {
+    AutoPhraseDictionary.Builder builder = new AutoPhraseDictionary.Builder( ignoreCase );
+    for (DictionaryConfig config : dictionaryConfigs) {
+      CharArraySet phraseSet = AutoPhraseDictionary.loadPhraseSet( loader, config.phraseFiles, ignoreCase );
+      builder.add( new AutoPhraseDictionary.Source( config.name, config.priority, config.prefix, config.type ), phraseSet );
+    }
+    dictionary = builder.build( );
+  }
+
+  @Override
+  public TokenStream create( TokenStream input ) {
+    if (parallelChunkSize > 0) {
+      ParallelAutoPhrasingTokenFilter parallelFilter = new ParallelAutoPhrasingTokenFilter(
+          input, dictionary, emitSingleTokens, getPool( parallelThreads ), parallelChunkSize );
+      if (replaceWhitespaceWith != null) {
+        parallelFilter.setReplaceWhitespaceWith( new Character( replaceWhitespaceWith.charAt( 0 )) );
+      }
+      parallelFilter.setSegmentation( segmentation );
+      return parallelFilter;
+    }
+
+    MultiAutoPhrasingTokenFilter autoPhraseFilter = new MultiAutoPhrasingTokenFilter( input, dictionary, emitSingleTokens );
+    if (replaceWhitespaceWith != null) {
+      autoPhraseFilter.setReplaceWhitespaceWith( new Character( replaceWhitespaceWith.charAt( 0 )) );
+    }
+    autoPhraseFilter.setSegmentation( segmentation );
+    return autoPhraseFilter;
+  }
+
+  /**
+   * Reads the <code>segmentation</code> argument: a {@link MultiAutoPhrasingTokenFilter.Segmentation}
+   * name in any case, priority if absent.
+   */
+  static MultiAutoPhrasingTokenFilter.Segmentation getSegmentation( Map<String, String> initArgs ) {
+    String name = initArgs.remove( "segmentation" );
+    if (name == null) return MultiAutoPhrasingTokenFilter.Segmentation.PRIORITY;
+    try {
+      return MultiAutoPhrasingTokenFilter.Segmentation.valueOf( name.trim( ).toUpperCase( Locale.ROOT ));
+    }
+    catch (IllegalArgumentException iae) {
+      throw new IllegalArgumentException( "Unknown segmentation: " + name );
+    }
+  }
+
+  // ForkJoinPool workers are daemon threads and exit when idle, so a shared pool does not keep
+  // the JVM alive. Also used by AutoPhrasingTokenFilterFactory.
+  static ForkJoinPool getPool( int parallelThreads ) {
+    synchronized (POOLS) {
+      ForkJoinPool pool = POOLS.get( parallelThreads );
+      if (pool == null) {
+        pool = new ForkJoinPool( parallelThreads );
+        POOLS.put( parallelThreads, pool );
+      }
+      return pool;
+    }
+  }
+
+  public AutoPhraseDictionary getDictionary( ) {
+    return dictionary;
+  }
+
+  private static class DictionaryConfig {
+    String name;
+    String phraseFiles;
+    int priority;
+    String prefix;
+    String type;
+  }
+}
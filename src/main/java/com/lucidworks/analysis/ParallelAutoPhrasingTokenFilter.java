@@ -0,0 +1,229 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+
+/**
+ * Produces the same output as {@link MultiAutoPhrasingTokenFilter}, but matches phrases in
+ * parallel for very long field values. A token that occurs in no phrase is a safe boundary: no
+ * phrase can span it, and the phrase selection on either side of it is independent. The filter
+ * reads a batch of about <code>chunkSize</code> tokens per pool thread, extends it to the next
+ * boundary, cuts it into chunks at boundaries, and matches the chunks as fork/join tasks. The
+ * output tokens are then built on the calling thread in input order, from the captured states
+ * of the input tokens, so positions and offsets are the same as in serial processing.
+ *
+ * Batches smaller than two chunks are matched on the calling thread. Memory is bounded by the
+ * batch size, unless the text has no boundary token for a long stretch.
+ */
+public final class ParallelAutoPhrasingTokenFilter extends TokenFilter {
+
+  private final CharTermAttribute termAtt = addAttribute( CharTermAttribute.class );
+  private final OffsetAttribute offsetAtt = addAttribute( OffsetAttribute.class );
+  private final PositionIncrementAttribute posIncAtt = addAttribute( PositionIncrementAttribute.class );
+  private final PositionLengthAttribute posLenAtt = addAttribute( PositionLengthAttribute.class );
+  private final TypeAttribute typeAtt = addAttribute( TypeAttribute.class );
+
+  private final AutoPhraseDictionary dictionary;
+  private final boolean emitSingleTokens;
+  private final ForkJoinPool pool;
+  private final int chunkSize;
+
+  private Character replaceWhitespaceWith = null;
+  private MultiAutoPhrasingTokenFilter.Segmentation segmentation = MultiAutoPhrasingTokenFilter.Segmentation.PRIORITY;
+
+  // input tokens of the current batch
+  private final List<State> states = new ArrayList<State>( );
+  private final List<char[]> terms = new ArrayList<char[]>( );
+  private final List<int[]> offsets = new ArrayList<int[]>( );
+
+  private final ArrayDeque<State> pending = new ArrayDeque<State>( );
+  private boolean exhausted = false;
+
+  public ParallelAutoPhrasingTokenFilter( TokenStream input, AutoPhraseDictionary dictionary, boolean emitSingleTokens,
+                                          ForkJoinPool pool, int chunkSize ) {
+    super( input );
+    if (chunkSize < 1) throw new IllegalArgumentException( "chunkSize must be positive: " + chunkSize );
+    this.dictionary = dictionary;
+    this.emitSingleTokens = emitSingleTokens;
+    this.pool = pool;
+    this.chunkSize = chunkSize;
+  }
+
+  public void setReplaceWhitespaceWith( Character replaceWhitespaceWith ) {
+    this.replaceWhitespaceWith = replaceWhitespaceWith;
+  }
+
+  public void setSegmentation( MultiAutoPhrasingTokenFilter.Segmentation segmentation ) {
+    this.segmentation = segmentation;
+  }
+
+  @Override
+  public void reset( ) throws IOException {
+    super.reset( );
+    clearBatch( );
+    pending.clear( );
+    exhausted = false;
+  }
+
+  @Override
+  public boolean incrementToken( ) throws IOException {
+    while (pending.isEmpty( )) {
+      if (exhausted) return false;
+      readBatch( );
+      processBatch( );
+    }
+    restoreState( pending.removeFirst( ) );
+    return true;
+  }
+
+  // Reads tokens until the batch is large enough and ends with a boundary token.
+  private void readBatch( ) throws IOException {
+    int batchSize = chunkSize * pool.getParallelism( );
+    while (true) {
+      if (!input.incrementToken( )) {
+        exhausted = true;
+        return;
+      }
+      states.add( captureState( ) );
+      char[] term = new char[ termAtt.length( ) ];
+      System.arraycopy( termAtt.buffer( ), 0, term, 0, term.length );
+      terms.add( term );
+      offsets.add( new int[] { offsetAtt.startOffset( ), offsetAtt.endOffset( ) } );
+
+      if (terms.size( ) >= batchSize && !dictionary.isPhraseToken( term, 0, term.length )) {
+        return;
+      }
+    }
+  }
+
+  private void processBatch( ) {
+    int size = terms.size( );
+    char[][] batch = terms.toArray( new char[ size ][] );
+    AutoPhraseDictionary.Phrase[] selected = new AutoPhraseDictionary.Phrase[ size ];
+
+    final List<ChunkTask> tasks = new ArrayList<ChunkTask>( );
+    int start = 0;
+    while (start < size) {
+      int end = Math.min( size, start + chunkSize );
+      // extend the chunk past the next boundary token
+      while (end < size && dictionary.isPhraseToken( batch[ end - 1 ], 0, batch[ end - 1 ].length )) {
+        end++;
+      }
+      tasks.add( new ChunkTask( batch, selected, start, end ));
+      start = end;
+    }
+
+    if (tasks.size( ) == 1) {
+      tasks.get( 0 ).compute( );
+    }
+    else {
+      pool.invoke( new RecursiveAction( ) {
+        @Override
+        protected void compute( ) {
+          invokeAll( tasks );
+        }
+      } );
+    }
+
+    for (int i = 0; i < size; ) {
+      AutoPhraseDictionary.Phrase phrase = selected[i];
+      if (emitSingleTokens) {
+        pending.add( states.get( i ));
+        if (phrase != null && !MultiAutoPhrasingTokenFilter.duplicatesToken( phrase )) {
+          pending.add( phraseState( i, phrase, true ));
+        }
+        i++;
+      }
+      else if (phrase != null) {
+        pending.add( phraseState( i, phrase, false ));
+        i += phrase.getLength( );
+      }
+      else {
+        pending.add( states.get( i ));
+        i++;
+      }
+    }
+    clearBatch( );
+  }
+
+  private void clearBatch( ) {
+    states.clear( );
+    terms.clear( );
+    offsets.clear( );
+  }
+
+  // Builds the phrase token exactly as MultiAutoPhrasingTokenFilter.queuePhrase does.
+  private State phraseState( int start, AutoPhraseDictionary.Phrase phrase, boolean stacked ) {
+    StringBuilder output = new StringBuilder( );
+    AutoPhraseDictionary.Source source = phrase.getSource( );
+    if (source.getOutputPrefix( ) != null) {
+      output.append( source.getOutputPrefix( ) );
+    }
+    for (int i = 0; i < phrase.getLength( ); i++) {
+      if (i > 0) output.append( replaceWhitespaceWith != null ? replaceWhitespaceWith.charValue( ) : ' ' );
+      output.append( terms.get( start + i ));
+    }
+
+    restoreState( states.get( start ));
+    termAtt.setEmpty( ).append( output );
+    offsetAtt.setOffset( offsets.get( start )[0], offsets.get( start + phrase.getLength( ) - 1 )[1] );
+    posLenAtt.setPositionLength( stacked ? phrase.getLength( ) : 1 );
+    if (source.getType( ) != null) {
+      typeAtt.setType( source.getType( ) );
+    }
+    if (stacked) {
+      posIncAtt.setPositionIncrement( 0 );
+    }
+    return captureState( );
+  }
+
+  // Selects the phrases of terms[start, end) into selected[]. Every chunk but the last ends
+  // with a boundary token, so no phrase crosses the end of a chunk.
+  private final class ChunkTask extends RecursiveAction {
+    private final char[][] terms;
+    private final AutoPhraseDictionary.Phrase[] selected;
+    private final int start;
+    private final int end;
+
+    ChunkTask( char[][] terms, AutoPhraseDictionary.Phrase[] selected, int start, int end ) {
+      this.terms = terms;
+      this.selected = selected;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute( ) {
+      // the segmenter keeps scratch tables, so each task has its own
+      AutoPhraseSegmenter segmenter = new AutoPhraseSegmenter( dictionary, segmentation );
+      int windowSize = segmenter.getWindowSize( );
+
+      if (emitSingleTokens) {
+        for (int i = start; i < end; i++) {
+          selected[i] = segmenter.bestPhraseAt( terms, i, end );
+        }
+        return;
+      }
+
+      // same windows as MultiAutoPhrasingTokenFilter: windowSize tokens from the head
+      int i = start;
+      while (i < end) {
+        AutoPhraseDictionary.Phrase phrase = segmenter.selectPhrase( terms, i, Math.min( end, i + windowSize ));
+        selected[i] = phrase;
+        i += phrase != null ? phrase.getLength( ) : 1;
+      }
+    }
+  }
+}
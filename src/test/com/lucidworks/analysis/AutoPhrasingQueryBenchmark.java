@@ -0,0 +1,121 @@
+package com.lucidworks.analysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.analysis.util.ResourceLoader;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Micro benchmark of the AutoPhrasingQParserPlugin query rewrite. Compares the exact path with
+ * the fuzzy path on the same synthetic dictionary and query set and prints per query latency.
+ *
+ * Run with <code>ant benchmark</code>. System properties: bench.phrases (dictionary size),
+ * bench.queries (number of distinct queries), bench.iterations (timed rewrites per mode).
+ */
+public class AutoPhrasingQueryBenchmark {
+
+  public static void main( String[] args ) throws Exception {
+    int numPhrases = Integer.getInteger( "bench.phrases", 5000 );
+    int numQueries = Integer.getInteger( "bench.queries", 1000 );
+    int iterations = Integer.getInteger( "bench.iterations", 20000 );
+
+    Random random = new Random( 42 );
+    List<String> vocabulary = vocabulary( random, 20000 );
+    final StringBuilder phrases = new StringBuilder( );
+    List<String> phraseList = new ArrayList<String>( );
+    for (int i = 0; i < numPhrases; i++) {
+      String phrase = vocabulary.get( random.nextInt( vocabulary.size( ) ) ) + " "
+                    + vocabulary.get( random.nextInt( vocabulary.size( ) ) );
+      phraseList.add( phrase );
+      phrases.append( phrase ).append( '\n' );
+    }
+
+    List<String> queries = new ArrayList<String>( );
+    for (int i = 0; i < numQueries; i++) {
+      StringBuilder query = new StringBuilder( );
+      query.append( vocabulary.get( random.nextInt( vocabulary.size( ) ) ) ).append( ' ' );
+      String phrase = phraseList.get( random.nextInt( phraseList.size( ) ) );
+      query.append( i % 2 == 0 ? misspell( random, phrase ) : phrase ).append( ' ' );
+      query.append( vocabulary.get( random.nextInt( vocabulary.size( ) ) ) );
+      queries.add( query.toString( ) );
+    }
+
+    AutoPhrasingQParserPlugin plugin = new AutoPhrasingQParserPlugin( );
+    NamedList<Object> initArgs = new NamedList<Object>( );
+    initArgs.add( "phrases", "autophrases.txt" );
+    plugin.init( initArgs );
+    plugin.inform( new ResourceLoader( ) {
+      @Override
+      public InputStream openResource( String resource ) throws IOException {
+        return new ByteArrayInputStream( phrases.toString( ).getBytes( StandardCharsets.UTF_8 ) );
+      }
+
+      @Override
+      public <T> Class<? extends T> findClass( String cname, Class<T> expectedType ) {
+        throw new UnsupportedOperationException( );
+      }
+
+      @Override
+      public <T> T newInstance( String cname, Class<T> expectedType ) {
+        throw new UnsupportedOperationException( );
+      }
+    } );
+
+    System.out.println( "phrases=" + numPhrases + " queries=" + numQueries + " iterations=" + iterations );
+    run( plugin, queries, iterations, false );
+    run( plugin, queries, iterations, true );
+  }
+
+  private static void run( AutoPhrasingQParserPlugin plugin, List<String> queries, int iterations, boolean fuzzy ) {
+    // warm up
+    for (int i = 0; i < iterations / 4; i++) {
+      plugin.filter( queries.get( i % queries.size( ) ), fuzzy );
+    }
+
+    long[] latencies = new long[ iterations ];
+    long total = System.nanoTime( );
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime( );
+      plugin.filter( queries.get( i % queries.size( ) ), fuzzy );
+      latencies[i] = System.nanoTime( ) - start;
+    }
+    total = System.nanoTime( ) - total;
+
+    Arrays.sort( latencies );
+    System.out.println( (fuzzy ? "fuzzy" : "exact") + ": "
+                        + (iterations * 1000000000L / total) + " queries/s"
+                        + " p50=" + latencies[ iterations / 2 ] / 1000.0 + "us"
+                        + " p99=" + latencies[ (int)(iterations * 0.99) ] / 1000.0 + "us"
+                        + " max=" + latencies[ iterations - 1 ] / 1000.0 + "us" );
+  }
+
+  private static List<String> vocabulary( Random random, int size ) {
+    List<String> words = new ArrayList<String>( );
+    for (int i = 0; i < size; i++) {
+      int length = 4 + random.nextInt( 7 );
+      StringBuilder word = new StringBuilder( );
+      for (int j = 0; j < length; j++) {
+        word.append( (char)('a' + random.nextInt( 26 )) );
+      }
+      words.add( word.toString( ) );
+    }
+    return words;
+  }
+
+  private static String misspell( Random random, String phrase ) {
+    char[] chars = phrase.toCharArray( );
+    int pos;
+    do {
+      pos = random.nextInt( chars.length );
+    } while (chars[pos] == ' ');
+    chars[pos] = (char)('a' + random.nextInt( 26 ));
+    return new String( chars );
+  }
+}
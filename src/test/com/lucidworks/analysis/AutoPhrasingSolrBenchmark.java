@@ -0,0 +1,359 @@
+package com.lucidworks.analysis;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CoreContainer;
+
+/**
+ * End to end benchmark of the auto phrasing chain inside an embedded Solr. A synthetic corpus is
+ * indexed into a core whose field uses AutoPhrasingTokenFilterFactory, and a skewed query log is
+ * replayed concurrently through AutoPhrasingQParserPlugin. The same corpus and query log are then
+ * run against a baseline chain without auto phrasing. Indexing throughput and query latency
+ * percentiles of both runs are written as JSON.
+ *
+ * Run with <code>ant benchmark-solr</code>. System properties (defaults in parentheses):
+ * <ul>
+ *  <li>bench.docs (20000), bench.docLength (200) - corpus size and tokens per document</li>
+ *  <li>bench.phrases (2000) - number of phrases in the generated autophrases.txt</li>
+ *  <li>bench.queries (20000), bench.distinctQueries (2000) - replayed and distinct queries</li>
+ *  <li>bench.queryLog - optional file with one query per line, replayed instead of generated queries</li>
+ *  <li>bench.threads (4) - concurrent query threads</li>
+ *  <li>bench.seed (42) - random seed for corpus and query generation</li>
+ *  <li>bench.solrHome (src/test-files/bench/solr) - Solr home template</li>
+ *  <li>bench.workDir (build/bench) - directory the Solr home is copied to</li>
+ *  <li>bench.output (build/bench/solr-benchmark.json) - result file</li>
+ * </ul>
+ */
+public class AutoPhrasingSolrBenchmark {
+
+  private static final int BATCH_SIZE = 500;
+
+  private final int numDocs = Integer.getInteger( "bench.docs", 20000 );
+  private final int docLength = Integer.getInteger( "bench.docLength", 200 );
+  private final int numPhrases = Integer.getInteger( "bench.phrases", 2000 );
+  private final int numQueries = Integer.getInteger( "bench.queries", 20000 );
+  private final int numDistinctQueries = Integer.getInteger( "bench.distinctQueries", 2000 );
+  private final int threads = Integer.getInteger( "bench.threads", 4 );
+  private final long seed = Long.getLong( "bench.seed", 42L );
+  private final String queryLog = System.getProperty( "bench.queryLog" );
+  private final File solrHomeTemplate = new File( System.getProperty( "bench.solrHome", "src/test-files/bench/solr" ));
+  private final File workDir = new File( System.getProperty( "bench.workDir", "build/bench" ));
+  private final File output = new File( System.getProperty( "bench.output", "build/bench/solr-benchmark.json" ));
+
+  private final Random random = new Random( seed );
+  private List<String> vocabulary;
+  private List<String> phrases;
+
+  public static void main( String[] args ) throws Exception {
+    new AutoPhrasingSolrBenchmark( ).run( );
+  }
+
+  private void run( ) throws Exception {
+    vocabulary = generateWords( 20000 );
+    phrases = generatePhrases( );
+    List<String> corpus = generateCorpus( );
+    List<String> queries = queryLog != null ? Files.readAllLines( new File( queryLog ).toPath( ), StandardCharsets.UTF_8 )
+                                            : generateQueries( );
+
+    File solrHome = new File( workDir, "solr-home" );
+    FileUtils.deleteDirectory( solrHome );
+    FileUtils.copyDirectory( solrHomeTemplate, solrHome );
+    writeLines( new File( solrHome, "configsets/autophrase/conf/autophrases.txt" ), phrases );
+
+    System.setProperty( "solr.solr.home", solrHome.getAbsolutePath( ) );
+    CoreContainer container = new CoreContainer( solrHome.getAbsolutePath( ) );
+    container.load( );
+    try {
+      RunResult autophrase = run( "autophrase", new EmbeddedSolrServer( container, "autophrase" ),
+                                  "text_ap", "/autophrase", corpus, queries );
+      RunResult baseline = run( "baseline", new EmbeddedSolrServer( container, "baseline" ),
+                                "text_plain", "/select", corpus, queries );
+      writeResults( autophrase, baseline );
+    }
+    finally {
+      container.shutdown( );
+    }
+  }
+
+  private RunResult run( String name, SolrServer server, String field, String handler,
+                         List<String> corpus, List<String> queries ) throws Exception {
+    RunResult result = new RunResult( );
+    result.name = name;
+
+    long start = System.nanoTime( );
+    List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>( );
+    for (int i = 0; i < corpus.size( ); i++) {
+      SolrInputDocument doc = new SolrInputDocument( );
+      doc.addField( "id", Integer.toString( i ));
+      doc.addField( field, corpus.get( i ));
+      batch.add( doc );
+      if (batch.size( ) == BATCH_SIZE) {
+        server.add( batch );
+        batch.clear( );
+      }
+    }
+    if (!batch.isEmpty( )) server.add( batch );
+    server.commit( );
+    long indexNanos = System.nanoTime( ) - start;
+    result.docsPerSecond = corpus.size( ) * 1e9 / indexNanos;
+    System.out.println( name + ": indexed " + corpus.size( ) + " docs, "
+                        + String.format( Locale.ROOT, "%.1f", result.docsPerSecond ) + " docs/s" );
+
+    checkHandler( name, server, handler );
+
+    // warm up before measuring
+    replay( server, handler, queries, Math.max( 1, numQueries / 10 ));
+
+    start = System.nanoTime( );
+    long[] latencies = replay( server, handler, queries, numQueries );
+    long queryNanos = System.nanoTime( ) - start;
+    Arrays.sort( latencies );
+
+    result.queries = latencies.length;
+    result.queriesPerSecond = latencies.length * 1e9 / queryNanos;
+    result.p50 = percentile( latencies, 0.50 );
+    result.p99 = percentile( latencies, 0.99 );
+    result.p999 = percentile( latencies, 0.999 );
+    System.out.println( name + ": " + latencies.length + " queries, "
+                        + String.format( Locale.ROOT, "%.1f q/s p50=%.3fms p99=%.3fms p999=%.3fms",
+                                         result.queriesPerSecond, result.p50, result.p99, result.p999 ));
+    return result;
+  }
+
+  private long[] replay( final SolrServer server, final String handler, final List<String> queries,
+                         final int count ) throws Exception {
+    final long[] latencies = new long[ count ];
+    final AtomicInteger next = new AtomicInteger( );
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>( );
+
+    ExecutorService executor = Executors.newFixedThreadPool( threads );
+    for (int t = 0; t < threads; t++) {
+      executor.execute( new Runnable( ) {
+        @Override
+        public void run( ) {
+          int i;
+          while ((i = next.getAndIncrement( )) < count && failure.get( ) == null) {
+            ModifiableSolrParams params = new ModifiableSolrParams( );
+            params.set( CommonParams.Q, queries.get( i % queries.size( ) ));
+            long start = System.nanoTime( );
+            try {
+              query( server, handler, params );
+            }
+            catch (Exception e) {
+              failure.compareAndSet( null, e );
+            }
+            latencies[i] = System.nanoTime( ) - start;
+          }
+        }
+      } );
+    }
+    executor.shutdown( );
+    executor.awaitTermination( 1, TimeUnit.DAYS );
+
+    if (failure.get( ) != null) throw failure.get( );
+    return latencies;
+  }
+
+  // EmbeddedSolrServer ignores qt when a /select handler exists, so the handler is set as the path
+  private static QueryResponse query( SolrServer server, String handler, ModifiableSolrParams params ) throws Exception {
+    QueryRequest request = new QueryRequest( params );
+    request.setPath( handler );
+    return request.process( server );
+  }
+
+  // Fails the run unless a corpus phrase finds documents through the handler, and, for the
+  // autophrase handler, unless the query parser reports that it joined the phrase.
+  private void checkHandler( String name, SolrServer server, String handler ) throws Exception {
+    String phrase = phrases.get( 0 );
+    ModifiableSolrParams params = new ModifiableSolrParams( );
+    params.set( CommonParams.Q, phrase );
+    params.set( CommonParams.DEBUG_QUERY, true );
+    QueryResponse response = query( server, handler, params );
+    if (response.getResults( ).getNumFound( ) == 0) {
+      throw new IllegalStateException( name + ": no hits for '" + phrase + "' through " + handler );
+    }
+    if (name.equals( "autophrase" )) {
+      Object trace = response.getDebugMap( ) != null ? response.getDebugMap( ).get( "autophrase" ) : null;
+      Object rewritten = trace instanceof NamedList ? ((NamedList<?>)trace).get( "rewritten" ) : null;
+      if (rewritten == null || !rewritten.toString( ).contains( phrase.replace( ' ', '_' ))) {
+        throw new IllegalStateException( name + ": " + handler + " did not autophrase '" + phrase + "': " + trace );
+      }
+    }
+  }
+
+  // latency in milliseconds at the given quantile of sorted nanosecond latencies
+  private double percentile( long[] sorted, double quantile ) {
+    if (sorted.length == 0) return 0.0;
+    int index = Math.min( sorted.length - 1, (int)Math.ceil( quantile * sorted.length ) - 1 );
+    return sorted[ Math.max( 0, index ) ] / 1e6;
+  }
+
+  private List<String> generateWords( int size ) {
+    List<String> words = new ArrayList<String>( );
+    for (int i = 0; i < size; i++) {
+      int length = 4 + random.nextInt( 7 );
+      StringBuilder word = new StringBuilder( );
+      for (int j = 0; j < length; j++) {
+        word.append( (char)('a' + random.nextInt( 26 )) );
+      }
+      words.add( word.toString( ));
+    }
+    return words;
+  }
+
+  private List<String> generatePhrases( ) {
+    List<String> phraseList = new ArrayList<String>( );
+    for (int i = 0; i < numPhrases; i++) {
+      int length = 2 + random.nextInt( 2 );
+      StringBuilder phrase = new StringBuilder( );
+      for (int j = 0; j < length; j++) {
+        if (j > 0) phrase.append( ' ' );
+        phrase.append( zipf( vocabulary ));
+      }
+      phraseList.add( phrase.toString( ));
+    }
+    return phraseList;
+  }
+
+  private List<String> generateCorpus( ) {
+    List<String> corpus = new ArrayList<String>( numDocs );
+    for (int i = 0; i < numDocs; i++) {
+      StringBuilder text = new StringBuilder( );
+      int tokens = 0;
+      while (tokens < docLength) {
+        if (text.length( ) > 0) text.append( ' ' );
+        if (random.nextInt( 10 ) == 0) {
+          text.append( phrases.get( random.nextInt( phrases.size( ) )));
+          tokens += 2;
+        }
+        else {
+          text.append( zipf( vocabulary ));
+          tokens++;
+        }
+      }
+      corpus.add( text.toString( ));
+    }
+    return corpus;
+  }
+
+  // a pool of distinct queries, sampled with a zipf distribution so that a few queries dominate
+  private List<String> generateQueries( ) {
+    List<String> distinct = new ArrayList<String>( );
+    for (int i = 0; i < numDistinctQueries; i++) {
+      StringBuilder query = new StringBuilder( zipf( vocabulary ));
+      if (random.nextBoolean( )) {
+        query.append( ' ' ).append( phrases.get( random.nextInt( phrases.size( ) )));
+      }
+      if (random.nextInt( 3 ) == 0) {
+        query.append( " +" ).append( zipf( vocabulary ));
+      }
+      distinct.add( query.toString( ));
+    }
+
+    List<String> log = new ArrayList<String>( numQueries );
+    for (int i = 0; i < numQueries; i++) {
+      log.add( zipf( distinct ));
+    }
+    return log;
+  }
+
+  // picks an element with probability proportional to 1 / rank
+  private String zipf( List<String> values ) {
+    double harmonic = Math.log( values.size( )) + 0.5772;
+    double target = random.nextDouble( ) * harmonic;
+    int rank = (int)Math.min( values.size( ) - 1, Math.floor( Math.exp( target - 0.5772 )));
+    return values.get( rank );
+  }
+
+  private void writeLines( File file, List<String> lines ) throws IOException {
+    Writer writer = new OutputStreamWriter( new FileOutputStream( file ), StandardCharsets.UTF_8 );
+    try {
+      for (String line : lines) {
+        writer.write( line );
+        writer.write( '\n' );
+      }
+    }
+    finally {
+      writer.close( );
+    }
+  }
+
+  private void writeResults( RunResult autophrase, RunResult baseline ) throws IOException {
+    output.getAbsoluteFile( ).getParentFile( ).mkdirs( );
+    StringBuilder json = new StringBuilder( );
+    json.append( "{\n" );
+    json.append( "  \"config\": {" )
+        .append( "\"docs\": " ).append( numDocs )
+        .append( ", \"docLength\": " ).append( docLength )
+        .append( ", \"phrases\": " ).append( numPhrases )
+        .append( ", \"queries\": " ).append( numQueries )
+        .append( ", \"threads\": " ).append( threads )
+        .append( ", \"seed\": " ).append( seed )
+        .append( ", \"queryLog\": " ).append( queryLog == null ? "null" : "\"" + queryLog.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ) + "\"" )
+        .append( "},\n" );
+    json.append( "  \"runs\": [\n" );
+    json.append( "    " ).append( autophrase.toJson( )).append( ",\n" );
+    json.append( "    " ).append( baseline.toJson( )).append( "\n" );
+    json.append( "  ],\n" );
+    json.append( "  \"relative\": {" )
+        .append( "\"indexThroughput\": " ).append( format( autophrase.docsPerSecond / baseline.docsPerSecond ))
+        .append( ", \"p50\": " ).append( format( autophrase.p50 / baseline.p50 ))
+        .append( ", \"p99\": " ).append( format( autophrase.p99 / baseline.p99 ))
+        .append( ", \"p999\": " ).append( format( autophrase.p999 / baseline.p999 ))
+        .append( "}\n" );
+    json.append( "}\n" );
+
+    List<String> lines = new ArrayList<String>( );
+    lines.add( json.toString( ).trim( ));
+    writeLines( output, lines );
+    System.out.println( "results written to " + output.getPath( ));
+  }
+
+  private static String format( double value ) {
+    return String.format( Locale.ROOT, "%.4f", value );
+  }
+
+  private static class RunResult {
+    String name;
+    double docsPerSecond;
+    int queries;
+    double queriesPerSecond;
+    double p50;
+    double p99;
+    double p999;
+
+    String toJson( ) {
+      return "{\"name\": \"" + name + "\""
+           + ", \"indexDocsPerSecond\": " + format( docsPerSecond )
+           + ", \"queries\": " + queries
+           + ", \"queriesPerSecond\": " + format( queriesPerSecond )
+           + ", \"latencyMs\": {\"p50\": " + format( p50 ) + ", \"p99\": " + format( p99 )
+           + ", \"p999\": " + format( p999 ) + "}}";
+    }
+  }
+}
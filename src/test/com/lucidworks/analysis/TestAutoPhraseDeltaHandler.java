@@ -0,0 +1,152 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.Version;
+import org.apache.solr.common.SolrException;
+
+public class TestAutoPhraseDeltaHandler extends TestCase {
+
+  // id, unphrased text
+  private static final String[][] DOCS = {
+      { "d1", "my income tax return" },
+      { "d2", "tax refund status" },
+      { "d3", "new york times" },
+      { "d4", "big red apple" },
+      { "d5", "the big apple" },
+      { "d6", "refund the tax" },
+      { "d7", "new jersey tax refund" }
+  };
+
+  private final Analyzer analyzer = new WhitespaceAnalyzer( Version.LUCENE_4_10_3 );
+
+  public void testChangedPhrasesSelectAffectedDocs( ) throws Exception {
+    CharArraySet oldSet = new CharArraySet( Arrays.asList( "income tax", "new york" ), false );
+    CharArraySet newSet = new CharArraySet( Arrays.asList( "income tax", "tax refund", "big apple" ), false );
+    List<String> added = AutoPhraseDeltaHandler.difference( newSet, oldSet );
+    List<String> removed = AutoPhraseDeltaHandler.difference( oldSet, newSet );
+    Collections.sort( added );
+    assertEquals( Arrays.asList( "big apple", "tax refund" ), added );
+    assertEquals( Arrays.asList( "new york" ), removed );
+
+    List<String> changed = new ArrayList<String>( added );
+    changed.addAll( removed );
+    IndexReader reader = index( );
+    try {
+      IndexSearcher searcher = new IndexSearcher( reader );
+      FixedBitSet affected = AutoPhraseDeltaHandler.affectedDocs( searcher, analyzer, "text", changed );
+      // the unchanged "income tax" and the tokens of a phrase out of order select nothing
+      assertEquals( Arrays.asList( "d2", "d3", "d5", "d7" ), ids( searcher, AutoPhraseDeltaHandler.page(
+          searcher, affected, null, idSort( ), 10 )));
+    }
+    finally {
+      reader.close( );
+    }
+  }
+
+  public void testPagesFollowUniqueKeyOrder( ) throws Exception {
+    IndexReader reader = index( );
+    try {
+      IndexSearcher searcher = new IndexSearcher( reader );
+      FixedBitSet affected = AutoPhraseDeltaHandler.affectedDocs( searcher, analyzer, "text",
+                                                                  Arrays.asList( "tax refund", "big apple", "new york" ));
+
+      TopDocs first = AutoPhraseDeltaHandler.page( searcher, affected, null, idSort( ), 3 );
+      assertEquals( 4, first.totalHits );
+      assertEquals( Arrays.asList( "d2", "d3", "d5" ), ids( searcher, first ));
+
+      TopDocs second = AutoPhraseDeltaHandler.page( searcher, affected, TermRangeQuery.newStringRange( "id", "d5", null, false, true ),
+                                                    idSort( ), 3 );
+      assertEquals( Arrays.asList( "d7" ), ids( searcher, second ));
+
+      // rows=0 only counts
+      TopDocs none = AutoPhraseDeltaHandler.page( searcher, affected, null, idSort( ), 0 );
+      assertEquals( 4, none.totalHits );
+      assertEquals( 0, none.scoreDocs.length );
+    }
+    finally {
+      reader.close( );
+    }
+  }
+
+  public void testConfigDirResourcesAccepted( ) {
+    AutoPhraseDeltaHandler.checkResourceNames( "newPhrases", "autophrases.txt" );
+    AutoPhraseDeltaHandler.checkResourceNames( "newPhrases", "phrases/tenantA.bin, shared-phrases.txt" );
+    AutoPhraseDeltaHandler.checkResourceNames( "newPhrases", "old..phrases.txt" );
+  }
+
+  public void testTraversalRejected( ) {
+    assertRejected( "../../../../etc/passwd" );
+    assertRejected( "phrases/../../solr.xml" );
+    assertRejected( "autophrases.txt,../core.properties" );
+    assertRejected( "..\\..\\solr.xml" );
+  }
+
+  public void testAbsolutePathRejected( ) {
+    assertRejected( "/etc/passwd" );
+    assertRejected( "\\\\server\\share\\phrases.txt" );
+    assertRejected( "C:\\phrases.txt" );
+    assertRejected( "file:/etc/passwd" );
+  }
+
+  private void assertRejected( String files ) {
+    try {
+      AutoPhraseDeltaHandler.checkResourceNames( "oldPhrases", files );
+      fail( "accepted " + files );
+    }
+    catch (SolrException e) {
+      assertEquals( SolrException.ErrorCode.BAD_REQUEST.code, e.code( ));
+      assertTrue( e.getMessage( ), e.getMessage( ).startsWith( "oldPhrases" ));
+    }
+  }
+
+  private Sort idSort( ) {
+    return new Sort( new SortField( "id", SortField.Type.STRING ));
+  }
+
+  private List<String> ids( IndexSearcher searcher, TopDocs docs ) throws IOException {
+    List<String> ids = new ArrayList<String>( );
+    for (ScoreDoc doc : docs.scoreDocs) {
+      ids.add( searcher.doc( doc.doc ).get( "id" ));
+    }
+    return ids;
+  }
+
+  // documents in reverse key order, so that key order differs from document order
+  private IndexReader index( ) throws IOException {
+    RAMDirectory directory = new RAMDirectory( );
+    IndexWriter writer = new IndexWriter( directory, new IndexWriterConfig( Version.LUCENE_4_10_3, analyzer ));
+    for (int i = DOCS.length - 1; i >= 0; i--) {
+      Document doc = new Document( );
+      doc.add( new StringField( "id", DOCS[i][0], Field.Store.YES ));
+      doc.add( new TextField( "text", DOCS[i][1], Field.Store.NO ));
+      writer.addDocument( doc );
+    }
+    writer.close( );
+    return DirectoryReader.open( directory );
+  }
+}
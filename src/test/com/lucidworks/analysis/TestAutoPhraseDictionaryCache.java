@@ -0,0 +1,81 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.util.Accountable;
+
+import junit.framework.TestCase;
+
+public class TestAutoPhraseDictionaryCache extends TestCase {
+
+  private final List<String> loads = new ArrayList<String>( );
+
+  private final AutoPhraseDictionaryCache.Loader<AutoPhraseDictionary> loader = new AutoPhraseDictionaryCache.Loader<AutoPhraseDictionary>( ) {
+    @Override
+    public AutoPhraseDictionary load( String name ) throws IOException {
+      loads.add( name );
+      return new AutoPhraseDictionary.Builder( true )
+          .add( new AutoPhraseDictionary.Source( name, 0, null, null ), Arrays.asList( name + " one", name + " two" ) )
+          .build( );
+    }
+  };
+
+  public void testLoadsOnce( ) throws Exception {
+    AutoPhraseDictionaryCache<AutoPhraseDictionary> cache = new AutoPhraseDictionaryCache<AutoPhraseDictionary>( loader, 1 << 20 );
+    AutoPhraseDictionary first = cache.get( "tenanta" );
+    assertSame( first, cache.get( "tenanta" ));
+    assertEquals( 2, first.size( ));
+    assertEquals( Arrays.asList( "tenanta" ), loads );
+    assertEquals( first.ramBytesUsed( ), cache.ramBytesUsed( ));
+  }
+
+  public void testEvictsLeastRecentlyUsed( ) throws Exception {
+    long size = loader.load( "tenanta" ).ramBytesUsed( );
+    loads.clear( );
+
+    // room for two dictionaries of about the same size
+    AutoPhraseDictionaryCache<AutoPhraseDictionary> cache = new AutoPhraseDictionaryCache<AutoPhraseDictionary>( loader, size * 2 + size / 2 );
+    cache.get( "tenanta" );
+    cache.get( "tenantb" );
+    cache.get( "tenanta" );
+    cache.get( "tenantc" );
+
+    assertEquals( 2, cache.size( ));
+    assertTrue( cache.contains( "tenanta" ));
+    assertFalse( cache.contains( "tenantb" ));
+    assertTrue( cache.contains( "tenantc" ));
+    assertTrue( cache.ramBytesUsed( ) <= size * 2 + size / 2 );
+
+    cache.get( "tenantb" );
+    assertEquals( Arrays.asList( "tenanta", "tenantb", "tenantc", "tenantb" ), loads );
+  }
+
+  public void testOversizedDictionaryIsServed( ) throws Exception {
+    AutoPhraseDictionaryCache<AutoPhraseDictionary> cache = new AutoPhraseDictionaryCache<AutoPhraseDictionary>( loader, 1 );
+    cache.get( "tenanta" );
+    AutoPhraseDictionary second = cache.get( "tenantb" );
+    assertEquals( 2, second.size( ));
+    assertEquals( 1, cache.size( ));
+    assertTrue( cache.contains( "tenantb" ));
+  }
+
+  public void testLoadFailureIsNotCached( ) throws Exception {
+    AutoPhraseDictionaryCache<Accountable> cache = new AutoPhraseDictionaryCache<Accountable>( new AutoPhraseDictionaryCache.Loader<Accountable>( ) {
+      @Override
+      public Accountable load( String name ) throws IOException {
+        throw new IOException( "missing " + name );
+      }
+    }, 1 << 20 );
+
+    try {
+      cache.get( "missing" );
+      fail( "expected IOException" );
+    }
+    catch (IOException expected) {
+    }
+    assertEquals( 0, cache.size( ));
+  }
+}
@@ -0,0 +1,229 @@
+package com.lucidworks.analysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.analysis.util.ResourceLoader;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+import junit.framework.TestCase;
+
+public class TestAutoPhraseMiner extends TestCase {
+
+  private static final String[] DOCS = {
+      "flights to new york city",
+      "hotels in new york city",
+      "new york pizza near me",
+      "cheap flights to boston",
+      "boston hotels near the park",
+      "weather in new york",
+      "pizza near boston"
+  };
+
+  public void testMineFromTermVectors( ) throws Exception {
+    FieldType type = new FieldType( TextField.TYPE_NOT_STORED );
+    type.setStoreTermVectors( true );
+    type.setStoreTermVectorPositions( true );
+
+    IndexReader reader = index( type, false );
+    try {
+      Map<String,AutoPhraseMiner.Candidate> candidates = mine( reader, miner( ));
+      assertTrue( candidates.containsKey( "new york" ));
+      assertEquals( 4, candidates.get( "new york" ).getCount( ));
+      assertTrue( candidates.containsKey( "new york city" ));
+      assertEquals( 2, candidates.get( "new york city" ).getCount( ));
+      assertFalse( candidates.containsKey( "to boston" ));
+    }
+    finally {
+      reader.close( );
+    }
+  }
+
+  public void testMineFromStoredTextWithSpills( ) throws Exception {
+    IndexReader reader = index( TextField.TYPE_STORED, true );
+    File tmpDir = File.createTempFile( "miner", "" );
+    tmpDir.delete( );
+    tmpDir.mkdirs( );
+    try {
+      AutoPhraseMiner miner = miner( );
+      miner.setMaxEntries( 1 );
+      miner.setThreads( 2 );
+      miner.setTmpDir( tmpDir );
+      Map<String,AutoPhraseMiner.Candidate> candidates = mine( reader, miner );
+      assertEquals( 4, candidates.get( "new york" ).getCount( ));
+      assertEquals( 2, candidates.get( "new york city" ).getCount( ));
+      assertNull( candidates.get( "near me" ));
+
+      // all run files are removed once the merge is done
+      assertEquals( 0, tmpDir.list( ).length );
+    }
+    finally {
+      reader.close( );
+      tmpDir.delete( );
+    }
+  }
+
+  public void testTopByWeight( ) throws Exception {
+    IndexReader reader = index( TextField.TYPE_STORED, false );
+    try {
+      AutoPhraseMiner miner = miner( );
+      miner.setWeight( AutoPhraseMiner.Weight.COUNT );
+      miner.setTop( 1 );
+      Map<String,AutoPhraseMiner.Candidate> candidates = mine( reader, miner );
+      assertEquals( 1, candidates.size( ));
+      assertEquals( 4.0f, candidates.get( "new york" ).getWeight( ));
+    }
+    finally {
+      reader.close( );
+    }
+  }
+
+  public void testCompiledDictionary( ) throws Exception {
+    AutoPhraseDictionary.Source source = new AutoPhraseDictionary.Source( "default", 0, null, null );
+    AutoPhraseDictionary dictionary = new AutoPhraseDictionary.Builder( true )
+        .add( source, "new york", 12.5f )
+        .add( source, "new york city", 3.0f )
+        .build( );
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream( );
+    dictionary.write( out );
+    final byte[] bytes = out.toByteArray( );
+
+    AutoPhraseDictionary read = AutoPhraseDictionary.read( new ByteArrayInputStream( bytes ));
+    assertTrue( read.isIgnoreCase( ));
+    assertEquals( 2, read.size( ));
+    assertEquals( "new york", read.getPhrases( ).get( 0 ).toString( ));
+    assertEquals( 12.5f, read.getPhrases( ).get( 0 ).getWeight( ));
+
+    CharArraySet phrases = AutoPhraseDictionary.loadPhraseSet( new ResourceLoader( ) {
+      @Override
+      public InputStream openResource( String resource ) throws IOException {
+        return new ByteArrayInputStream( resource.equals( "compiled.bin" ) ? bytes : "pizza near me\n".getBytes( "UTF-8" ));
+      }
+
+      @Override
+      public <T> Class<? extends T> findClass( String cname, Class<T> expectedType ) {
+        throw new UnsupportedOperationException( );
+      }
+
+      @Override
+      public <T> T newInstance( String cname, Class<T> expectedType ) {
+        throw new UnsupportedOperationException( );
+      }
+    }, "compiled.bin,phrases.txt", false );
+    assertEquals( 3, phrases.size( ));
+    assertTrue( phrases.contains( "new york city" ));
+    assertTrue( phrases.contains( "pizza near me" ));
+  }
+
+  public void testAnalyzerByClassName( ) throws Exception {
+    Analyzer analyzer = AutoPhraseMiner.newAnalyzer( WhitespaceAnalyzer.class.getName( ));
+    assertEquals( Arrays.asList( "New", "York" ), terms( analyzer, "New York" ));
+  }
+
+  public void testAnalyzerOfSchemaField( ) throws Exception {
+    File coreDir = File.createTempFile( "core", "" );
+    coreDir.delete( );
+    File confDir = new File( coreDir, "conf" );
+    confDir.mkdirs( );
+    try {
+      write( new File( confDir, "solrconfig.xml" ),
+             "<config><luceneMatchVersion>4.10.3</luceneMatchVersion></config>" );
+      write( new File( confDir, "schema.xml" ),
+             "<schema name=\"miner\" version=\"1.5\">"
+             + "<fields><field name=\"text\" type=\"text_lower\" indexed=\"true\" stored=\"true\" /></fields>"
+             + "<types><fieldType name=\"text_lower\" class=\"solr.TextField\"><analyzer>"
+             + "<tokenizer class=\"solr.WhitespaceTokenizerFactory\"/><filter class=\"solr.LowerCaseFilterFactory\"/>"
+             + "</analyzer></fieldType></types></schema>" );
+
+      Analyzer analyzer = AutoPhraseMiner.schemaAnalyzer( coreDir, "text" );
+      assertEquals( Arrays.asList( "new", "york" ), terms( analyzer, "New York" ));
+    }
+    finally {
+      for (File file : confDir.listFiles( )) file.delete( );
+      confDir.delete( );
+      coreDir.delete( );
+    }
+  }
+
+  private List<String> terms( Analyzer analyzer, String text ) throws IOException {
+    List<String> terms = new ArrayList<String>( );
+    TokenStream ts = analyzer.tokenStream( "text", text );
+    CharTermAttribute termAtt = ts.addAttribute( CharTermAttribute.class );
+    ts.reset( );
+    while (ts.incrementToken( )) {
+      terms.add( termAtt.toString( ));
+    }
+    ts.end( );
+    ts.close( );
+    return terms;
+  }
+
+  private void write( File file, String content ) throws IOException {
+    OutputStream out = new FileOutputStream( file );
+    try {
+      out.write( content.getBytes( "UTF-8" ));
+    }
+    finally {
+      out.close( );
+    }
+  }
+
+  private AutoPhraseMiner miner( ) {
+    AutoPhraseMiner miner = new AutoPhraseMiner( "text" );
+    miner.setAnalyzer( new WhitespaceAnalyzer( Version.LUCENE_4_10_3 ));
+    miner.setMinCount( 2 );
+    miner.setMinLlr( 0.0 );
+    miner.setMinPmi( 2.0 );
+    return miner;
+  }
+
+  private Map<String,AutoPhraseMiner.Candidate> mine( IndexReader reader, AutoPhraseMiner miner ) throws IOException {
+    final Map<String,AutoPhraseMiner.Candidate> candidates = new LinkedHashMap<String,AutoPhraseMiner.Candidate>( );
+    miner.mine( reader, new AutoPhraseMiner.CandidateOutput( ) {
+      @Override
+      public void add( AutoPhraseMiner.Candidate candidate ) {
+        candidates.put( candidate.getPhrase( ), candidate );
+      }
+    } );
+    return candidates;
+  }
+
+  private IndexReader index( FieldType type, boolean segmentPerDoc ) throws IOException {
+    RAMDirectory directory = new RAMDirectory( );
+    Analyzer analyzer = new WhitespaceAnalyzer( Version.LUCENE_4_10_3 );
+    IndexWriter writer = new IndexWriter( directory, new IndexWriterConfig( Version.LUCENE_4_10_3, analyzer ));
+    for (String text : DOCS) {
+      Document doc = new Document( );
+      doc.add( new Field( "text", text, type ));
+      writer.addDocument( doc );
+      if (segmentPerDoc) writer.commit( );
+    }
+    writer.close( );
+    return DirectoryReader.open( directory );
+  }
+}
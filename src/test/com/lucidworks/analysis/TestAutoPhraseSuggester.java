@@ -0,0 +1,68 @@
+package com.lucidworks.analysis;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestAutoPhraseSuggester extends TestCase {
+
+  private final AutoPhraseDictionary dictionary;
+
+  public TestAutoPhraseSuggester( ) {
+    AutoPhraseDictionary.Source source = new AutoPhraseDictionary.Source( "default", 0, null, null );
+    dictionary = new AutoPhraseDictionary.Builder( true )
+        .add( source, "new york", 10.0f )
+        .add( source, "new york city", 25.0f )
+        .add( source, "new jersey", 5.0f )
+        .add( source, "newport beach", 7.0f )
+        .add( source, "york minster", 3.0f )
+        .add( source, "income tax", 1.0f )
+        .build( );
+  }
+
+  public void testPrefixRankedByWeight( ) throws Exception {
+    AutoPhraseSuggester suggester = new AutoPhraseSuggester( dictionary, new Character( '_' ) );
+    List<AutoPhraseSuggester.Suggestion> suggestions = suggester.suggest( "New", 10 );
+
+    assertEquals( 4, suggestions.size( ));
+    assertEquals( "new york city", suggestions.get( 0 ).getText( ));
+    assertEquals( "new_york_city", suggestions.get( 0 ).getOutput( ));
+    assertEquals( 25.0f, suggestions.get( 0 ).getWeight( ));
+    assertEquals( "new york", suggestions.get( 1 ).getText( ));
+    assertEquals( "newport beach", suggestions.get( 2 ).getText( ));
+    assertEquals( "new jersey", suggestions.get( 3 ).getText( ));
+
+    suggestions = suggester.suggest( "new", 2 );
+    assertEquals( 2, suggestions.size( ));
+    assertEquals( "new york", suggestions.get( 1 ).getText( ));
+  }
+
+  public void testPartialLastToken( ) throws Exception {
+    AutoPhraseSuggester suggester = new AutoPhraseSuggester( dictionary, new Character( '_' ) );
+    List<AutoPhraseSuggester.Suggestion> suggestions = suggester.suggest( "new yo", 10 );
+
+    assertEquals( 3, suggestions.size( ));
+    assertEquals( "new york city", suggestions.get( 0 ).getText( ));
+    assertEquals( "new york", suggestions.get( 1 ).getText( ));
+    // a phrase may also start at the last token
+    assertEquals( "new york minster", suggestions.get( 2 ).getText( ));
+    assertEquals( "new york_minster", suggestions.get( 2 ).getOutput( ));
+  }
+
+  public void testCompleteLastToken( ) throws Exception {
+    AutoPhraseSuggester suggester = new AutoPhraseSuggester( dictionary, null );
+    List<AutoPhraseSuggester.Suggestion> suggestions = suggester.suggest( "cheap new ", 10 );
+
+    assertEquals( 3, suggestions.size( ));
+    assertEquals( "cheap new york city", suggestions.get( 0 ).getText( ));
+    assertEquals( "cheap new york city", suggestions.get( 0 ).getOutput( ));
+    assertEquals( "cheap new jersey", suggestions.get( 2 ).getText( ));
+  }
+
+  public void testNoMatch( ) throws Exception {
+    AutoPhraseSuggester suggester = new AutoPhraseSuggester( dictionary, null );
+    assertTrue( suggester.suggest( "boston", 10 ).isEmpty( ));
+    assertTrue( suggester.suggest( "", 10 ).isEmpty( ));
+    assertTrue( suggester.suggest( "  ", 10 ).isEmpty( ));
+  }
+}
@@ -0,0 +1,307 @@
+package com.lucidworks.analysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.ResourceLoader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+
+public class TestAutoPhrasingQParserPlugin extends TestCase {
+
+  // phrase files by resource name
+  private final Map<String,String> resources = new HashMap<String,String>( );
+
+  private QParser lastDelegate;
+
+  @Override
+  protected void setUp( ) throws Exception {
+    super.setUp( );
+    resources.put( "autophrases.txt", "income tax\nnew york city\nnew york\n" );
+  }
+
+  public void testTraceReportsRewriteAndPhraseSpans( ) throws Exception {
+    AutoPhrasingQParserPlugin plugin = plugin( new NamedList<Object>( ));
+    AutoPhrasingQParserPlugin.RewriteTrace trace = new AutoPhrasingQParserPlugin.RewriteTrace( "my Income tax -new york" );
+    String rewritten = plugin.rewrite( trace.original, null, new ModifiableSolrParams( ), trace );
+
+    NamedList<Object> info = trace.toNamedList( );
+    assertEquals( "my Income tax -new york", info.get( "original" ));
+    assertEquals( rewritten, info.get( "rewritten" ));
+    assertEquals( "my income_tax -new_york ", rewritten );
+    assertEquals( Boolean.FALSE, info.get( "rewrittenUpstream" ));
+
+    // spans are [start, end) token offsets in the lexed query "my income tax - new york"
+    NamedList<?> phrases = (NamedList<?>)info.get( "phrases" );
+    assertEquals( 2, phrases.size( ));
+    assertEquals( "income_tax", phrases.getName( 0 ));
+    assertEquals( 1, ((NamedList<?>)phrases.getVal( 0 )).get( "start" ));
+    assertEquals( 3, ((NamedList<?>)phrases.getVal( 0 )).get( "end" ));
+    assertEquals( "new_york", phrases.getName( 1 ));
+    assertEquals( 4, ((NamedList<?>)phrases.getVal( 1 )).get( "start" ));
+    assertEquals( 6, ((NamedList<?>)phrases.getVal( 1 )).get( "end" ));
+
+    NamedList<?> dictionary = (NamedList<?>)info.get( "dictionary" );
+    assertEquals( AutoPhrasingQParserPlugin.DEFAULT_DICTIONARY_NAME, dictionary.get( "name" ));
+    assertEquals( 3, dictionary.get( "size" ));
+    assertNotNull( info.get( "timing" ));
+  }
+
+  public void testDelegateUnwrappedWithoutDebug( ) throws Exception {
+    AutoPhrasingQParserPlugin plugin = plugin( new NamedList<Object>( ));
+    ModifiableSolrParams params = new ModifiableSolrParams( );
+    params.set( "q", "income tax" );
+
+    QParser parser = plugin.createParser( "income tax", null, params, request( ));
+    assertSame( lastDelegate, parser );
+    assertEquals( new TermQuery( new Term( "text", "income_tax " )), parser.getQuery( ));
+  }
+
+  public void testDelegateWrappedWithDebug( ) throws Exception {
+    AutoPhrasingQParserPlugin plugin = plugin( new NamedList<Object>( ));
+    ModifiableSolrParams params = new ModifiableSolrParams( );
+    params.set( "q", "income tax" );
+    params.set( "debug", "query" );
+
+    QParser parser = plugin.createParser( "income tax", null, params, request( ));
+    assertTrue( parser instanceof AutoPhrasingQParserPlugin.DebugQParser );
+    assertEquals( new TermQuery( new Term( "text", "income_tax " )), parser.getQuery( ));
+
+    NamedList<Object> debugInfo = new NamedList<Object>( );
+    parser.addDebugInfo( debugInfo );
+    NamedList<?> info = (NamedList<?>)debugInfo.get( "autophrase" );
+    assertEquals( "income tax", info.get( "original" ));
+    assertEquals( "income_tax ", info.get( "rewritten" ));
+  }
+
+  public void testRewrittenQueryPassedToDelegate( ) throws Exception {
+    AutoPhrasingQParserPlugin plugin = plugin( new NamedList<Object>( ));
+    ModifiableSolrParams params = new ModifiableSolrParams( );
+    params.set( "q", "my income tax" );
+    params.set( AutoPhrasingQParserPlugin.REWRITTEN_PARAM, true );
+
+    // q was autophrased upstream: the marker hands it to the delegate unchanged
+    QParser parser = plugin.createParser( "my income tax", null, params, request( ));
+    assertSame( lastDelegate, parser );
+    assertEquals( "my income tax", parser.getString( ));
+
+    // the marker only covers q: a filter query is still autophrased
+    parser = plugin.createParser( "new york city", null, params, request( ));
+    assertEquals( "new_york_city ", parser.getString( ));
+  }
+
+  public void testCacheHitMatchesUncachedRewrite( ) throws Exception {
+    NamedList<Object> initArgs = new NamedList<Object>( );
+    initArgs.add( "rewriteCacheSize", 100 );
+    AutoPhrasingQParserPlugin plugin = plugin( initArgs );
+    ModifiableSolrParams params = new ModifiableSolrParams( );
+    ModifiableSolrParams canonical = new ModifiableSolrParams( );
+    canonical.set( "canonical", true );
+
+    String[] queries = { "my income tax", "+new york city -income tax", "tax income", "" };
+    for (SolrParams local : new SolrParams[] { null, canonical }) {
+      for (String query : queries) {
+        String miss = plugin.rewrite( query, local, params );
+        String hit = plugin.rewrite( query, local, params );
+        assertEquals( query, plugin.rewriteUncached( query, local, params ), miss );
+        assertEquals( query, miss, hit );
+      }
+    }
+    // the canonical flag is part of the key
+    assertEquals( 2 * queries.length, plugin.getRewriteCacheSize( ));
+    assertEquals( "+new_york_city -income_tax", plugin.rewrite( "-income tax +new york city", canonical, params ));
+  }
+
+  public void testRewriteCacheKeyedByDictionaryVersion( ) throws Exception {
+    resources.put( "tenantA.txt", "income tax\n" );
+    resources.put( "tenantB.txt", "new york\n" );
+    NamedList<Object> dictionaries = new NamedList<Object>( );
+    dictionaries.add( "tenantA", "tenantA.txt" );
+    dictionaries.add( "tenantB", "tenantB.txt" );
+    NamedList<Object> initArgs = new NamedList<Object>( );
+    initArgs.add( "dictionaries", dictionaries );
+    initArgs.add( "rewriteCacheSize", 100 );
+    // every load evicts the other dictionary
+    initArgs.add( "dictionaryCacheRamMB", 0 );
+    AutoPhrasingQParserPlugin plugin = plugin( initArgs );
+
+    ModifiableSolrParams tenantA = new ModifiableSolrParams( );
+    tenantA.set( AutoPhrasingQParserPlugin.DICT_PARAM, "tenantA" );
+    ModifiableSolrParams tenantB = new ModifiableSolrParams( );
+    tenantB.set( AutoPhrasingQParserPlugin.DICT_PARAM, "tenantB" );
+
+    assertEquals( "income_tax ", plugin.rewrite( "income tax", tenantA, new ModifiableSolrParams( )));
+    resources.put( "tenantA.txt", "tax refund\n" );
+    plugin.rewrite( "income tax", tenantB, new ModifiableSolrParams( ));
+    assertEquals( "income tax ", plugin.rewrite( "income tax", tenantA, new ModifiableSolrParams( )));
+  }
+
+  public void testDefaultDictionaryNameReserved( ) throws Exception {
+    NamedList<Object> dictionaries = new NamedList<Object>( );
+    dictionaries.add( AutoPhrasingQParserPlugin.DEFAULT_DICTIONARY_NAME, "autophrases.txt" );
+    NamedList<Object> initArgs = new NamedList<Object>( );
+    initArgs.add( "dictionaries", dictionaries );
+    try {
+      plugin( initArgs );
+      fail( "accepted a dictionary named " + AutoPhrasingQParserPlugin.DEFAULT_DICTIONARY_NAME );
+    }
+    catch (SolrException e) {
+      assertTrue( e.getMessage( ), e.getMessage( ).contains( "reserved" ));
+    }
+  }
+
+  public void testRewriteMatchesIndexAnalysisOnOverlappingPhrases( ) throws Exception {
+    resources.put( "overlapping.txt", "income tax\ntax refund\nbig apple\napple pie\n" );
+    NamedList<Object> initArgs = new NamedList<Object>( );
+    initArgs.add( "phrases", "overlapping.txt" );
+    AutoPhrasingQParserPlugin plugin = plugin( initArgs );
+
+    Map<String,String> factoryArgs = new HashMap<String,String>( );
+    factoryArgs.put( "phrases", "overlapping.txt" );
+    factoryArgs.put( "replaceWhitespaceWith", "_" );
+    AutoPhrasingTokenFilterFactory factory = new AutoPhrasingTokenFilterFactory( factoryArgs );
+    factory.inform( loader( ));
+
+    assertEquals( "my income_tax tax_refund is late ", plugin.rewrite( "my income tax refund is late", null, new ModifiableSolrParams( )));
+    assertEquals( "big_apple apple_pie ", plugin.rewrite( "big apple pie", null, new ModifiableSolrParams( )));
+    for (String query : new String[] { "my income tax refund is late", "big apple pie", "income tax big apple pie refund" }) {
+      assertEquals( indexTerms( factory, query ), plugin.rewrite( query, null, new ModifiableSolrParams( )));
+    }
+  }
+
+  public void testCanonicalizeSortsFlatClauses( ) {
+    assertEquals( "a b c", AutoPhrasingQParserPlugin.canonicalize( "c a b" ));
+    assertEquals( "a b c", AutoPhrasingQParserPlugin.canonicalize( "  b   a\tc " ));
+    assertEquals( AutoPhrasingQParserPlugin.canonicalize( "income_tax new_york_city " ),
+                  AutoPhrasingQParserPlugin.canonicalize( "new_york_city  income_tax" ));
+    assertEquals( "single", AutoPhrasingQParserPlugin.canonicalize( " single " ));
+    assertEquals( "", AutoPhrasingQParserPlugin.canonicalize( "  " ));
+  }
+
+  public void testCanonicalizeKeepsPrefixesWithTheirClause( ) {
+    assertEquals( "+income_tax -new_york refund",
+                  AutoPhrasingQParserPlugin.canonicalize( "refund -new_york +income_tax" ));
+    assertEquals( AutoPhrasingQParserPlugin.canonicalize( "-new_york +income_tax" ),
+                  AutoPhrasingQParserPlugin.canonicalize( "+income_tax -new_york" ));
+  }
+
+  public void testCanonicalizeJoinsFieldWithValue( ) {
+    assertEquals( "+category:income_tax refund", AutoPhrasingQParserPlugin.canonicalize( "refund +category: income_tax" ));
+    assertEquals( "category:books title:tax", AutoPhrasingQParserPlugin.canonicalize( "title:tax category: books" ));
+  }
+
+  public void testCanonicalizeKeepsOrderOfNonFlatQueries( ) {
+    // boolean operators, grouping, quotes, ranges, local params and escapes: only whitespace is normalized
+    assertEquals( "c AND a", AutoPhrasingQParserPlugin.canonicalize( "c  AND a " ));
+    assertEquals( "c OR a", AutoPhrasingQParserPlugin.canonicalize( "c OR a" ));
+    assertEquals( "c NOT a", AutoPhrasingQParserPlugin.canonicalize( "c NOT a" ));
+    assertEquals( "c && a", AutoPhrasingQParserPlugin.canonicalize( "c && a" ));
+    assertEquals( "c !a", AutoPhrasingQParserPlugin.canonicalize( "c !a" ));
+    assertEquals( "(c b) a", AutoPhrasingQParserPlugin.canonicalize( "(c b)  a" ));
+    assertEquals( "title:\"c b\" a", AutoPhrasingQParserPlugin.canonicalize( "title:\"c b\" a" ));
+    assertEquals( "price:[10 TO 20] a", AutoPhrasingQParserPlugin.canonicalize( "price:[10 TO 20] a" ));
+    assertEquals( "price:{10 TO 20} a", AutoPhrasingQParserPlugin.canonicalize( "price:{10 TO 20} a" ));
+    assertEquals( "c a\\:b", AutoPhrasingQParserPlugin.canonicalize( "c a\\:b" ));
+    // a field is only joined with its value when the clauses are sorted
+    assertEquals( "c: a (b)", AutoPhrasingQParserPlugin.canonicalize( "c:  a (b)" ));
+  }
+
+  private AutoPhrasingQParserPlugin plugin( NamedList<Object> initArgs ) throws IOException {
+    AutoPhrasingQParserPlugin plugin = new AutoPhrasingQParserPlugin( ) {
+      @Override
+      QParserPlugin getDelegatePlugin( SolrQueryRequest req ) {
+        return new QParserPlugin( ) {
+          @Override
+          public void init( NamedList args ) {
+          }
+
+          @Override
+          public QParser createParser( String qStr, SolrParams localParams, SolrParams params, SolrQueryRequest req ) {
+            lastDelegate = new QParser( qStr, localParams, params, req ) {
+              @Override
+              public Query parse( ) {
+                return new TermQuery( new Term( "text", qstr ));
+              }
+            };
+            return lastDelegate;
+          }
+        };
+      }
+    };
+    if (initArgs.get( "phrases" ) == null) {
+      initArgs.add( "phrases", "autophrases.txt" );
+    }
+    initArgs.add( "replaceWhitespaceWith", "_" );
+    plugin.init( initArgs );
+    plugin.inform( loader( ));
+    return plugin;
+  }
+
+  private ResourceLoader loader( ) {
+    return new ResourceLoader( ) {
+      @Override
+      public InputStream openResource( String resource ) throws IOException {
+        String content = resources.get( resource );
+        if (content == null) throw new IOException( "no resource " + resource );
+        return new ByteArrayInputStream( content.getBytes( StandardCharsets.UTF_8 ));
+      }
+
+      @Override
+      public <T> Class<? extends T> findClass( String cname, Class<T> expectedType ) {
+        throw new UnsupportedOperationException( );
+      }
+
+      @Override
+      public <T> T newInstance( String cname, Class<T> expectedType ) {
+        throw new UnsupportedOperationException( );
+      }
+    };
+  }
+
+  // the terms index time analysis gives the query text, in the format of a rewritten query
+  private String indexTerms( AutoPhrasingTokenFilterFactory factory, String text ) throws IOException {
+    TokenStream ts = factory.create( new WhitespaceTokenizer( new StringReader( text )));
+    CharTermAttribute term = ts.addAttribute( CharTermAttribute.class );
+    StringBuilder terms = new StringBuilder( );
+    ts.reset( );
+    while (ts.incrementToken( )) {
+      terms.append( term ).append( ' ' );
+    }
+    ts.end( );
+    ts.close( );
+    return terms.toString( );
+  }
+
+  // a request that only has a context, which is all the parser needs besides its delegate
+  private SolrQueryRequest request( ) {
+    final Map<Object,Object> context = new HashMap<Object,Object>( );
+    return (SolrQueryRequest)Proxy.newProxyInstance( getClass( ).getClassLoader( ), new Class<?>[] { SolrQueryRequest.class },
+        new InvocationHandler( ) {
+          @Override
+          public Object invoke( Object proxy, Method method, Object[] args ) {
+            if (method.getName( ).equals( "getContext" )) return context;
+            throw new UnsupportedOperationException( method.getName( ));
+          }
+        } );
+  }
+}
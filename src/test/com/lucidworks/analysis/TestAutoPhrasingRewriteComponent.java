@@ -0,0 +1,150 @@
+package com.lucidworks.analysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.util.ResourceLoader;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.QueryParsing;
+
+public class TestAutoPhrasingRewriteComponent extends TestCase {
+
+  private int rewrites;
+
+  private AutoPhrasingRewriteComponent component;
+
+  @Override
+  protected void setUp( ) throws Exception {
+    super.setUp( );
+    final AutoPhrasingQParserPlugin plugin = plugin( );
+    component = new AutoPhrasingRewriteComponent( ) {
+      @Override
+      QParserPlugin getParserPlugin( SolrQueryRequest req ) {
+        return plugin;
+      }
+    };
+    component.init( new NamedList<Object>( ));
+  }
+
+  public void testRewritesOnce( ) throws Exception {
+    ResponseBuilder rb = responseBuilder( params( "my income tax" ));
+    component.prepare( rb );
+    assertEquals( 1, rewrites );
+    assertEquals( "my income_tax ", rb.req.getParams( ).get( CommonParams.Q ));
+    assertEquals( "my income_tax ", rb.getQueryString( ));
+    assertTrue( rb.req.getParams( ).getBool( AutoPhrasingQParserPlugin.REWRITTEN_PARAM, false ));
+
+    // the marker stops the rewritten query from being autophrased again
+    component.prepare( rb );
+    assertEquals( 1, rewrites );
+    assertEquals( "my income_tax ", rb.getQueryString( ));
+  }
+
+  public void testMarkerSkipsRewrite( ) throws Exception {
+    ModifiableSolrParams params = params( "my income tax" );
+    params.set( AutoPhrasingQParserPlugin.REWRITTEN_PARAM, true );
+    assertNotRewritten( params );
+  }
+
+  public void testShardRequestSkipped( ) throws Exception {
+    ModifiableSolrParams params = params( "my income tax" );
+    params.set( ShardParams.IS_SHARD, true );
+    assertNotRewritten( params );
+  }
+
+  public void testOtherDefTypeSkipped( ) throws Exception {
+    ModifiableSolrParams params = params( "my income tax" );
+    params.set( QueryParsing.DEFTYPE, "edismax" );
+    assertNotRewritten( params );
+  }
+
+  public void testLocalParamsSkipped( ) throws Exception {
+    assertNotRewritten( params( "{!lucene df=title}my income tax" ));
+  }
+
+  private void assertNotRewritten( SolrParams params ) throws IOException {
+    ResponseBuilder rb = responseBuilder( params );
+    component.prepare( rb );
+    assertEquals( 0, rewrites );
+    assertSame( params, rb.req.getParams( ));
+    assertNull( rb.getQueryString( ));
+  }
+
+  private ModifiableSolrParams params( String q ) {
+    ModifiableSolrParams params = new ModifiableSolrParams( );
+    params.set( CommonParams.Q, q );
+    params.set( QueryParsing.DEFTYPE, "autophrasingParser" );
+    return params;
+  }
+
+  // counts the rewrites the component asks for
+  private AutoPhrasingQParserPlugin plugin( ) throws IOException {
+    AutoPhrasingQParserPlugin plugin = new AutoPhrasingQParserPlugin( ) {
+      @Override
+      String rewrite( String qStr, SolrParams localParams, SolrParams params, RewriteTrace trace ) {
+        rewrites++;
+        return super.rewrite( qStr, localParams, params, trace );
+      }
+    };
+    NamedList<Object> initArgs = new NamedList<Object>( );
+    initArgs.add( "phrases", "autophrases.txt" );
+    initArgs.add( "replaceWhitespaceWith", "_" );
+    plugin.init( initArgs );
+    plugin.inform( new ResourceLoader( ) {
+      @Override
+      public InputStream openResource( String resource ) throws IOException {
+        return new ByteArrayInputStream( "income tax\nnew york city\n".getBytes( StandardCharsets.UTF_8 ));
+      }
+
+      @Override
+      public <T> Class<? extends T> findClass( String cname, Class<T> expectedType ) {
+        throw new UnsupportedOperationException( );
+      }
+
+      @Override
+      public <T> T newInstance( String cname, Class<T> expectedType ) {
+        throw new UnsupportedOperationException( );
+      }
+    } );
+    return plugin;
+  }
+
+  // a request that only has params and a context, which is all the component uses
+  private ResponseBuilder responseBuilder( SolrParams params ) {
+    final SolrParams[] current = { params };
+    final Map<Object,Object> context = new HashMap<Object,Object>( );
+    SolrQueryRequest req = (SolrQueryRequest)Proxy.newProxyInstance( getClass( ).getClassLoader( ),
+        new Class<?>[] { SolrQueryRequest.class },
+        new InvocationHandler( ) {
+          @Override
+          public Object invoke( Object proxy, Method method, Object[] args ) {
+            if (method.getName( ).equals( "getParams" )) return current[0];
+            if (method.getName( ).equals( "setParams" )) {
+              current[0] = (SolrParams)args[0];
+              return null;
+            }
+            if (method.getName( ).equals( "getContext" )) return context;
+            throw new UnsupportedOperationException( method.getName( ));
+          }
+        } );
+    return new ResponseBuilder( req, new SolrQueryResponse( ), Collections.<SearchComponent>emptyList( ));
+  }
+}
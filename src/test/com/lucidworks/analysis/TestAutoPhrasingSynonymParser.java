@@ -0,0 +1,87 @@
+package com.lucidworks.analysis;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.synonym.SynonymFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.util.CharArraySet;
+
+public class TestAutoPhrasingSynonymParser extends TestCase {
+
+  private final CharArraySet phrases = new CharArraySet( Arrays.asList( "income tax", "new york city", "new york" ), true );
+
+  private static final String SYNONYMS = "nyc, new york city\n"
+                                       + "refund => rebate\n";
+
+  public void testPhrasesReplaceTokens( ) throws Exception {
+    SynonymMap map = build( false );
+    assertEquals( Arrays.asList( "my/1/1/0-2", "income_tax/1/1/3-13", "in/1/1/14-16", "new_york/1/1/17-25", "rocks/1/1/26-31" ),
+                  tokens( map, "my Income tax in new york rocks" ));
+  }
+
+  public void testSynonymsOfPhrasesAreJoined( ) throws Exception {
+    SynonymMap map = build( false );
+    // the phrase input keeps no original tokens, and the phrase output is one token
+    assertEquals( Arrays.asList( "nyc/1/1/0-13", "new_york_city/0/1/0-13", "rebate/1/1/14-20" ),
+                  tokens( map, "new york city refund" ));
+    assertEquals( Arrays.asList( "nyc/1/1/0-3", "new_york_city/0/1/0-3" ),
+                  tokens( map, "nyc" ));
+  }
+
+  public void testIncludeTokensBuildsTokenGraph( ) throws Exception {
+    SynonymMap map = build( true );
+    assertEquals( Arrays.asList( "new/1/1/0-3", "nyc/0/3/0-13", "new_york_city/0/3/0-13", "york/1/1/4-8", "city/1/1/9-13",
+                                 "rebate/1/1/14-20" ),
+                  tokens( map, "new york city refund" ));
+  }
+
+  public void testOverlappingPhrasesMatchLeftmostLongest( ) throws Exception {
+    CharArraySet overlapping = new CharArraySet( Arrays.asList( "income tax", "tax refund" ), true );
+    SynonymMap map = build( overlapping, false );
+    // unlike AutoPhrasingTokenFilter, which emits income_tax tax_refund, the second phrase is not
+    // matched and the leftover token goes through the synonym rules alone (refund => rebate)
+    assertEquals( Arrays.asList( "income_tax/1/1/0-10", "rebate/1/1/11-17" ),
+                  tokens( map, "income tax refund" ));
+    assertEquals( Arrays.asList( "my/1/1/0-2", "tax_refund/1/1/3-13" ),
+                  tokens( map, "my tax refund" ));
+  }
+
+  private SynonymMap build( boolean includeTokens ) throws Exception {
+    return build( phrases, includeTokens );
+  }
+
+  private SynonymMap build( CharArraySet phrases, boolean includeTokens ) throws Exception {
+    AutoPhrasingSynonymParser parser = new AutoPhrasingSynonymParser( phrases, true, includeTokens, new Character( '_' ), true );
+    parser.parse( new StringReader( SYNONYMS ));
+    parser.addPhrases( );
+    return parser.build( );
+  }
+
+  // term/posInc/posLen/start-end for every token
+  private List<String> tokens( SynonymMap map, String input ) throws Exception {
+    TokenStream ts = new SynonymFilter( new WhitespaceTokenizer( new StringReader( input )), map, true );
+    CharTermAttribute term = ts.addAttribute( CharTermAttribute.class );
+    OffsetAttribute offset = ts.addAttribute( OffsetAttribute.class );
+    PositionIncrementAttribute posInc = ts.addAttribute( PositionIncrementAttribute.class );
+    PositionLengthAttribute posLen = ts.addAttribute( PositionLengthAttribute.class );
+    List<String> tokens = new ArrayList<String>( );
+    ts.reset();
+    while (ts.incrementToken()) {
+      tokens.add( term + "/" + posInc.getPositionIncrement() + "/" + posLen.getPositionLength()
+                  + "/" + offset.startOffset() + "-" + offset.endOffset() );
+    }
+    ts.end();
+    ts.close();
+    return tokens;
+  }
+}
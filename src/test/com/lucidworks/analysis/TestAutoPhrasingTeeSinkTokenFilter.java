@@ -0,0 +1,130 @@
+package com.lucidworks.analysis;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+
+public class TestAutoPhrasingTeeSinkTokenFilter extends TestCase {
+
+  private final AutoPhraseDictionary dictionary = new AutoPhraseDictionary.Builder( false )
+      .add( new AutoPhraseDictionary.Source( "products", 0, null, null ),
+            Arrays.asList( "apple iphone", "income tax", "new york city", "new york", "seat belts", "belts" ) )
+      .add( new AutoPhraseDictionary.Source( "brands", 10, "brand_", "BRAND" ),
+            Arrays.asList( "iphone pro", "apple" ) )
+      .build( );
+
+  private final String[] inputs = {
+      "my income tax in new york city is high",
+      "apple iphone pro case",
+      "new york new york city income",
+      "nothing to see here",
+      "seat belts please",
+      ""
+  };
+
+  public void testSinksMatchSinglePassFilters( ) throws Exception {
+    for (String input : inputs) {
+      AutoPhrasingTeeSinkTokenFilter tee = tee( input, AutoPhrasingTeeSinkTokenFilter.Mode.PHRASES );
+      TokenStream withTokens = tee.newSinkTokenStream( AutoPhrasingTeeSinkTokenFilter.Mode.PHRASES_AND_TOKENS );
+
+      assertEquals( input, tokens( multi( input, false )), tokens( tee ));
+      assertEquals( input, tokens( multi( input, true )), tokens( withTokens ));
+    }
+  }
+
+  public void testTeeInEachMode( ) throws Exception {
+    for (String input : inputs) {
+      assertEquals( input, tokens( multi( input, true )),
+                    tokens( tee( input, AutoPhrasingTeeSinkTokenFilter.Mode.PHRASES_AND_TOKENS )));
+      assertEquals( input, tokens( multi( input, false )),
+                    tokens( tee( input, AutoPhrasingTeeSinkTokenFilter.Mode.PHRASES )));
+    }
+  }
+
+  public void testPhraseSpans( ) throws Exception {
+    AutoPhrasingTeeSinkTokenFilter tee = tee( "my income tax in new york city is high",
+                                              AutoPhrasingTeeSinkTokenFilter.Mode.PHRASES_AND_TOKENS );
+    TokenStream spans = tee.newSinkTokenStream( AutoPhrasingTeeSinkTokenFilter.Mode.PHRASE_SPANS );
+    tokens( tee );
+
+    CharTermAttribute term = spans.addAttribute( CharTermAttribute.class );
+    OffsetAttribute offset = spans.addAttribute( OffsetAttribute.class );
+    PositionIncrementAttribute posInc = spans.addAttribute( PositionIncrementAttribute.class );
+    PositionLengthAttribute posLen = spans.addAttribute( PositionLengthAttribute.class );
+    spans.reset();
+
+    assertTrue(spans.incrementToken());
+    assertEquals( "income_tax", term.toString());
+    assertEquals( 2, posInc.getPositionIncrement());
+    assertEquals( 2, posLen.getPositionLength());
+    assertEquals( 3, offset.startOffset());
+    assertEquals( 13, offset.endOffset());
+    assertTrue(spans.incrementToken());
+    assertEquals( "new_york_city", term.toString());
+    assertEquals( 3, posInc.getPositionIncrement());
+    assertEquals( 3, posLen.getPositionLength());
+    assertFalse(spans.incrementToken());
+    spans.end();
+    assertEquals( 38, offset.endOffset());
+    spans.close();
+  }
+
+  public void testOneTokenPhraseNotRepeated( ) throws Exception {
+    assertEquals( Arrays.asList( "seat/1/1/0-4", "seat_belts/0/2/0-10", "belts/1/1/5-10", "please/1/1/11-17", "end=17" ),
+                  tokens( tee( "seat belts please", AutoPhrasingTeeSinkTokenFilter.Mode.PHRASES_AND_TOKENS )));
+  }
+
+  public void testSinkBeforeTeeFails( ) throws Exception {
+    AutoPhrasingTeeSinkTokenFilter tee = tee( "income tax", AutoPhrasingTeeSinkTokenFilter.Mode.PHRASES );
+    TokenStream sink = tee.newSinkTokenStream( AutoPhrasingTeeSinkTokenFilter.Mode.PHRASES_AND_TOKENS );
+    tee.reset();
+    sink.reset();
+    try {
+      sink.incrementToken();
+      fail( "expected IllegalStateException" );
+    }
+    catch (IllegalStateException expected) {
+    }
+  }
+
+  private AutoPhrasingTeeSinkTokenFilter tee( String input, AutoPhrasingTeeSinkTokenFilter.Mode mode ) {
+    AutoPhrasingTeeSinkTokenFilter tee = new AutoPhrasingTeeSinkTokenFilter(
+        new WhitespaceTokenizer( new StringReader( input ) ), dictionary, mode );
+    tee.setReplaceWhitespaceWith( new Character( '_' ) );
+    return tee;
+  }
+
+  private MultiAutoPhrasingTokenFilter multi( String input, boolean emitSingleTokens ) {
+    MultiAutoPhrasingTokenFilter filter = new MultiAutoPhrasingTokenFilter(
+        new WhitespaceTokenizer( new StringReader( input ) ), dictionary, emitSingleTokens );
+    filter.setReplaceWhitespaceWith( new Character( '_' ) );
+    return filter;
+  }
+
+  // term/posInc/posLen/start-end for every token, then the final offset
+  private List<String> tokens( TokenStream ts ) throws Exception {
+    CharTermAttribute term = ts.addAttribute( CharTermAttribute.class );
+    OffsetAttribute offset = ts.addAttribute( OffsetAttribute.class );
+    PositionIncrementAttribute posInc = ts.addAttribute( PositionIncrementAttribute.class );
+    PositionLengthAttribute posLen = ts.addAttribute( PositionLengthAttribute.class );
+    List<String> tokens = new ArrayList<String>( );
+    ts.reset();
+    while (ts.incrementToken()) {
+      tokens.add( term + "/" + posInc.getPositionIncrement() + "/" + posLen.getPositionLength()
+                  + "/" + offset.startOffset() + "-" + offset.endOffset() );
+    }
+    ts.end();
+    tokens.add( "end=" + offset.endOffset() );
+    ts.close();
+    return tokens;
+  }
+}
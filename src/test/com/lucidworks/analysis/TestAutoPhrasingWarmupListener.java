@@ -0,0 +1,113 @@
+package com.lucidworks.analysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.util.ResourceLoader;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+
+public class TestAutoPhrasingWarmupListener extends TestCase {
+
+  private final List<String> queries = Arrays.asList( "my income tax", "+new york city -income tax", "tax refund" );
+
+  public void testFillsRewriteCache( ) throws Exception {
+    AutoPhrasingQParserPlugin plugin = plugin( );
+    NamedList<Object> args = new NamedList<Object>( );
+    args.add( "canonical", true );
+    AutoPhrasingWarmupListener listener = listener( args, queries );
+
+    AutoPhrasingWarmupListener.Stats stats = warm( listener, plugin, true );
+    assertEquals( 3, stats.phrases );
+    assertEquals( 2 * queries.size( ), stats.queries );
+    assertFalse( stats.budgetExhausted );
+    // default and canonical rewrites of every query
+    assertEquals( 2 * queries.size( ), plugin.getRewriteCacheSize( ));
+
+    // requests with the warmed flags are cache hits
+    ModifiableSolrParams canonical = new ModifiableSolrParams( );
+    canonical.set( "canonical", true );
+    for (String query : queries) {
+      plugin.rewrite( query, null, new ModifiableSolrParams( ));
+      plugin.rewrite( query, canonical, new ModifiableSolrParams( ));
+    }
+    assertEquals( 2 * queries.size( ), plugin.getRewriteCacheSize( ));
+  }
+
+  public void testReplaysOnlyOnFirstSearcher( ) throws Exception {
+    NamedList<Object> args = new NamedList<Object>( );
+    args.add( "passes", 5 );
+    AutoPhrasingWarmupListener listener = listener( args, queries );
+
+    assertEquals( 5 * queries.size( ), warm( listener, plugin( ), true ).queries );
+    assertEquals( queries.size( ), warm( listener, plugin( ), false ).queries );
+  }
+
+  public void testStopsAtTimeBudget( ) throws Exception {
+    List<String> manyQueries = new ArrayList<String>( );
+    for (int i = 0; i < 1000; i++) {
+      manyQueries.add( "income tax " + i );
+    }
+    NamedList<Object> args = new NamedList<Object>( );
+    args.add( "timeBudgetMs", 50 );
+    args.add( "passes", 1000000 );
+    AutoPhrasingWarmupListener listener = listener( args, manyQueries );
+
+    long start = System.nanoTime( );
+    AutoPhrasingWarmupListener.Stats stats = warm( listener, plugin( ), true );
+    long elapsedMs = (System.nanoTime( ) - start) / 1000000;
+
+    assertTrue( stats.budgetExhausted );
+    assertTrue( stats.queries > 0 );
+    assertTrue( stats.queries < 1000 * 1000000 );
+    assertTrue( "warmed for " + elapsedMs + " ms", elapsedMs < 2000 );
+  }
+
+  private AutoPhrasingWarmupListener.Stats warm( AutoPhrasingWarmupListener listener, AutoPhrasingQParserPlugin plugin,
+                                                 boolean firstSearcher ) throws IOException {
+    AutoPhrasingWarmupListener.Stats stats = new AutoPhrasingWarmupListener.Stats( );
+    listener.warm( plugin, Collections.<Analyzer>emptyList( ), firstSearcher, System.nanoTime( ), stats );
+    return stats;
+  }
+
+  // the listener only uses its core to find the parser and the sample files
+  private AutoPhrasingWarmupListener listener( NamedList<Object> args, List<String> samples ) {
+    AutoPhrasingWarmupListener listener = new AutoPhrasingWarmupListener( null );
+    listener.init( args );
+    listener.setSamples( samples, Collections.<String>emptyList( ));
+    return listener;
+  }
+
+  private AutoPhrasingQParserPlugin plugin( ) throws IOException {
+    AutoPhrasingQParserPlugin plugin = new AutoPhrasingQParserPlugin( );
+    NamedList<Object> initArgs = new NamedList<Object>( );
+    initArgs.add( "phrases", "autophrases.txt" );
+    initArgs.add( "rewriteCacheSize", 100 );
+    plugin.init( initArgs );
+    plugin.inform( new ResourceLoader( ) {
+      @Override
+      public InputStream openResource( String resource ) throws IOException {
+        return new ByteArrayInputStream( "income tax\nnew york city\ntax refund\n".getBytes( StandardCharsets.UTF_8 ));
+      }
+
+      @Override
+      public <T> Class<? extends T> findClass( String cname, Class<T> expectedType ) {
+        throw new UnsupportedOperationException( );
+      }
+
+      @Override
+      public <T> T newInstance( String cname, Class<T> expectedType ) {
+        throw new UnsupportedOperationException( );
+      }
+    } );
+    return plugin;
+  }
+}
@@ -0,0 +1,106 @@
+package com.lucidworks.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestFuzzyAutoPhraseMatcher extends TestCase {
+
+  private final AutoPhraseDictionary dictionary = new AutoPhraseDictionary.Builder( true )
+      .add( new AutoPhraseDictionary.Source( "default", 0, null, null ),
+            Arrays.asList( "income tax", "income tax refund", "property tax", "new york" ) )
+      .build( );
+
+  public void testMisspelledPhrase( ) throws Exception {
+    FuzzyAutoPhraseMatcher matcher = new FuzzyAutoPhraseMatcher( dictionary, 1, 4, 10, true );
+    List<Object> units = matcher.match( tokens( "my incme tax refnud" ) );
+
+    assertEquals( 2, units.size() );
+    assertEquals( "my", new String( (char[])units.get( 0 ) ));
+    assertEquals( "income tax refund", units.get( 1 ).toString() );
+  }
+
+  public void testExactMatchPreferred( ) throws Exception {
+    FuzzyAutoPhraseMatcher matcher = new FuzzyAutoPhraseMatcher( dictionary, 2, 4, 10, true );
+    List<Object> units = matcher.match( tokens( "property tax" ) );
+
+    assertEquals( 1, units.size() );
+    assertEquals( "property tax", units.get( 0 ).toString() );
+  }
+
+  public void testShortTermsMatchExactly( ) throws Exception {
+    FuzzyAutoPhraseMatcher matcher = new FuzzyAutoPhraseMatcher( dictionary, 1, 4, 10, true );
+    List<Object> units = matcher.match( tokens( "new yor" ) );
+
+    // "yor" is below the minimum term length
+    assertEquals( 2, units.size() );
+    assertEquals( "new", new String( (char[])units.get( 0 ) ));
+    assertEquals( "yor", new String( (char[])units.get( 1 ) ));
+
+    matcher = new FuzzyAutoPhraseMatcher( dictionary, 1, 3, 10, true );
+    units = matcher.match( tokens( "new yor" ) );
+    assertEquals( 1, units.size() );
+    assertEquals( "new york", units.get( 0 ).toString() );
+  }
+
+  public void testNoFuzzyEdits( ) throws Exception {
+    FuzzyAutoPhraseMatcher matcher = new FuzzyAutoPhraseMatcher( dictionary, 0, 4, 10, true );
+    List<Object> units = matcher.match( tokens( "incme tax" ) );
+
+    assertEquals( 2, units.size() );
+    assertEquals( "incme", new String( (char[])units.get( 0 ) ));
+  }
+
+  public void testExpansionBudgetPerQuery( ) throws Exception {
+    // one alternative is spent on "incme", none is left for "refnud"
+    FuzzyAutoPhraseMatcher matcher = new FuzzyAutoPhraseMatcher( dictionary, 1, 4, 10, 1, true );
+    List<Object> units = matcher.match( tokens( "my incme tax refnud" ) );
+
+    assertEquals( 3, units.size() );
+    assertEquals( "income tax", units.get( 1 ).toString() );
+    assertEquals( "refnud", new String( (char[])units.get( 2 ) ));
+
+    // exact matches do not use the budget
+    matcher = new FuzzyAutoPhraseMatcher( dictionary, 1, 4, 10, 0, true );
+    units = matcher.match( tokens( "incme tax property tax" ) );
+    assertEquals( 3, units.size() );
+    assertEquals( "incme", new String( (char[])units.get( 0 ) ));
+    assertEquals( "property tax", units.get( 2 ).toString() );
+  }
+
+  public void testExpansionBudgetBoundsBranching( ) throws Exception {
+    // every token of "tokn tokn tokn tokn" is one edit away from ten dictionary tokens
+    List<String> phrases = new ArrayList<String>( );
+    String[] variants = { "toka", "tokb", "tokc", "tokd", "toke", "tokf", "tokg", "tokh", "toki", "tokj" };
+    for (String a : variants) {
+      for (String b : variants) {
+        for (String c : variants) {
+          phrases.add( a + " " + b + " " + c + " tokz" );
+        }
+      }
+    }
+    AutoPhraseDictionary wide = new AutoPhraseDictionary.Builder( true )
+        .add( new AutoPhraseDictionary.Source( "default", 0, null, null ), phrases )
+        .build( );
+
+    // 10 + 100 + 1000 alternatives without a budget; the first one that completes is found with it
+    FuzzyAutoPhraseMatcher matcher = new FuzzyAutoPhraseMatcher( wide, 1, 4, 10, 200, true );
+    List<Object> units = matcher.match( tokens( "tokn tokn tokn tokz" ) );
+    assertEquals( 1, units.size() );
+    assertEquals( "toka toka toka tokz", units.get( 0 ).toString() );
+
+    matcher = new FuzzyAutoPhraseMatcher( wide, 1, 4, 10, 2, true );
+    units = matcher.match( tokens( "tokn tokn tokn tokz" ) );
+    assertEquals( 4, units.size() );
+  }
+
+  private List<char[]> tokens( String input ) {
+    List<char[]> tokens = new ArrayList<char[]>( );
+    for (String token : input.split( " " )) {
+      tokens.add( token.toCharArray( ) );
+    }
+    return tokens;
+  }
+}
@@ -0,0 +1,250 @@
+package com.lucidworks.analysis;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+
+public class TestMultiAutoPhrasingTokenFilter extends TestCase {
+
+  public void testSingleDictionary( ) throws Exception {
+    AutoPhraseDictionary dictionary = new AutoPhraseDictionary.Builder( false )
+        .add( new AutoPhraseDictionary.Source( "tax", 0, null, null ),
+              Arrays.asList( "income tax", "property tax", "new york city", "new york" ) )
+        .build( );
+
+    final String input = "my income tax in new york city is high";
+    MultiAutoPhrasingTokenFilter aptf = new MultiAutoPhrasingTokenFilter(
+        new WhitespaceTokenizer( new StringReader( input ) ), dictionary, false );
+    aptf.setReplaceWhitespaceWith( new Character( '_' ) );
+    CharTermAttribute term = aptf.addAttribute( CharTermAttribute.class );
+    OffsetAttribute offset = aptf.addAttribute( OffsetAttribute.class );
+    PositionIncrementAttribute posInc = aptf.addAttribute( PositionIncrementAttribute.class );
+    PositionLengthAttribute posLen = aptf.addAttribute( PositionLengthAttribute.class );
+    aptf.reset();
+
+    // without single tokens every phrase takes a single position
+    assertTrue(aptf.incrementToken());
+    assertEquals( "my", term.toString());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "income_tax", term.toString());
+    assertEquals( 3, offset.startOffset());
+    assertEquals( 13, offset.endOffset());
+    assertEquals( 1, posInc.getPositionIncrement());
+    assertEquals( 1, posLen.getPositionLength());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "in", term.toString());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "new_york_city", term.toString());
+    assertEquals( 1, posInc.getPositionIncrement());
+    assertEquals( 1, posLen.getPositionLength());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "is", term.toString());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "high", term.toString());
+    assertFalse(aptf.incrementToken());
+  }
+
+  public void testPriorityAndPrefix( ) throws Exception {
+    AutoPhraseDictionary dictionary = new AutoPhraseDictionary.Builder( false )
+        .add( new AutoPhraseDictionary.Source( "products", 0, null, null ),
+              Arrays.asList( "apple iphone" ) )
+        .add( new AutoPhraseDictionary.Source( "brands", 10, "brand_", "BRAND" ),
+              Arrays.asList( "iphone pro", "apple" ) )
+        .build( );
+
+    final String input = "apple iphone pro case";
+    MultiAutoPhrasingTokenFilter aptf = new MultiAutoPhrasingTokenFilter(
+        new WhitespaceTokenizer( new StringReader( input ) ), dictionary, false );
+    aptf.setReplaceWhitespaceWith( new Character( '_' ) );
+    CharTermAttribute term = aptf.addAttribute( CharTermAttribute.class );
+    TypeAttribute type = aptf.addAttribute( TypeAttribute.class );
+    aptf.reset();
+
+    // "apple iphone" yields to the higher priority "iphone pro" starting inside it
+    assertTrue(aptf.incrementToken());
+    assertEquals( "brand_apple", term.toString());
+    assertEquals( "BRAND", type.type());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "brand_iphone_pro", term.toString());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "case", term.toString());
+    assertFalse(aptf.incrementToken());
+  }
+
+  public void testDuplicatePhraseOwnedByHighestPriority( ) throws Exception {
+    AutoPhraseDictionary dictionary = new AutoPhraseDictionary.Builder( false )
+        .add( new AutoPhraseDictionary.Source( "locations", 0, "loc_", null ),
+              Arrays.asList( "new york" ) )
+        .add( new AutoPhraseDictionary.Source( "teams", 5, "team_", null ),
+              Arrays.asList( "new york" ) )
+        .build( );
+    assertEquals( 1, dictionary.size() );
+
+    MultiAutoPhrasingTokenFilter aptf = new MultiAutoPhrasingTokenFilter(
+        new WhitespaceTokenizer( new StringReader( "go new york" ) ), dictionary, false );
+    aptf.setReplaceWhitespaceWith( new Character( '_' ) );
+    CharTermAttribute term = aptf.addAttribute( CharTermAttribute.class );
+    aptf.reset();
+
+    assertTrue(aptf.incrementToken());
+    assertEquals( "go", term.toString());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "team_new_york", term.toString());
+    assertFalse(aptf.incrementToken());
+  }
+
+  public void testEmitSingle( ) throws Exception {
+    AutoPhraseDictionary dictionary = new AutoPhraseDictionary.Builder( false )
+        .add( new AutoPhraseDictionary.Source( "tax", 0, null, null ),
+              Arrays.asList( "income tax", "tax refund" ) )
+        .build( );
+
+    final String input = "income tax refund";
+    MultiAutoPhrasingTokenFilter aptf = new MultiAutoPhrasingTokenFilter(
+        new WhitespaceTokenizer( new StringReader( input ) ), dictionary, true );
+    aptf.setReplaceWhitespaceWith( new Character( '_' ) );
+    CharTermAttribute term = aptf.addAttribute( CharTermAttribute.class );
+    PositionIncrementAttribute posInc = aptf.addAttribute( PositionIncrementAttribute.class );
+    PositionLengthAttribute posLen = aptf.addAttribute( PositionLengthAttribute.class );
+    aptf.reset();
+
+    assertTrue(aptf.incrementToken());
+    assertEquals( "income", term.toString());
+    assertEquals( 1, posInc.getPositionIncrement());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "income_tax", term.toString());
+    assertEquals( 0, posInc.getPositionIncrement());
+    assertEquals( 2, posLen.getPositionLength());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "tax", term.toString());
+    assertEquals( 1, posInc.getPositionIncrement());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "tax_refund", term.toString());
+    assertEquals( 0, posInc.getPositionIncrement());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "refund", term.toString());
+    assertFalse(aptf.incrementToken());
+  }
+
+  public void testEmitSingleDoesNotRepeatOneTokenPhrase( ) throws Exception {
+    AutoPhraseDictionary dictionary = new AutoPhraseDictionary.Builder( false )
+        .add( new AutoPhraseDictionary.Source( "parts", 0, null, null ),
+              Arrays.asList( "seat belts", "belts" ) )
+        .add( new AutoPhraseDictionary.Source( "brands", 0, "brand_", null ),
+              Arrays.asList( "volvo" ) )
+        .build( );
+
+    MultiAutoPhrasingTokenFilter aptf = new MultiAutoPhrasingTokenFilter(
+        new WhitespaceTokenizer( new StringReader( "seat belts please volvo" ) ), dictionary, true );
+    aptf.setReplaceWhitespaceWith( new Character( '_' ) );
+    CharTermAttribute term = aptf.addAttribute( CharTermAttribute.class );
+    PositionIncrementAttribute posInc = aptf.addAttribute( PositionIncrementAttribute.class );
+    PositionLengthAttribute posLen = aptf.addAttribute( PositionLengthAttribute.class );
+    aptf.reset();
+
+    assertTrue(aptf.incrementToken());
+    assertEquals( "seat", term.toString());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "seat_belts", term.toString());
+    assertEquals( 0, posInc.getPositionIncrement());
+    assertEquals( 2, posLen.getPositionLength());
+    // "belts" is a phrase of its own, but is emitted once
+    assertTrue(aptf.incrementToken());
+    assertEquals( "belts", term.toString());
+    assertEquals( 1, posInc.getPositionIncrement());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "please", term.toString());
+    assertEquals( 1, posInc.getPositionIncrement());
+    // a prefixed one token phrase is a different term and is still stacked
+    assertTrue(aptf.incrementToken());
+    assertEquals( "volvo", term.toString());
+    assertTrue(aptf.incrementToken());
+    assertEquals( "brand_volvo", term.toString());
+    assertEquals( 0, posInc.getPositionIncrement());
+    assertEquals( 1, posLen.getPositionLength());
+    assertFalse(aptf.incrementToken());
+  }
+
+  public void testLongPhrasesGrowTheWindow( ) throws Exception {
+    AutoPhraseDictionary dictionary = new AutoPhraseDictionary.Builder( false )
+        .add( new AutoPhraseDictionary.Source( "titles", 0, null, null ),
+              Arrays.asList( "a tale of two cities by charles dickens", "two cities" ) )
+        .build( );
+
+    assertEquals( Arrays.asList( "read", "a_tale_of_two_cities_by_charles_dickens", "or", "two_cities", "now" ),
+                  terms( dictionary, "read a tale of two cities by charles dickens or two cities now",
+                         MultiAutoPhrasingTokenFilter.Segmentation.PRIORITY ));
+  }
+
+  public void testLeftmostLongestIgnoresPriority( ) throws Exception {
+    AutoPhraseDictionary dictionary = new AutoPhraseDictionary.Builder( false )
+        .add( new AutoPhraseDictionary.Source( "products", 0, null, null ),
+              Arrays.asList( "apple iphone" ) )
+        .add( new AutoPhraseDictionary.Source( "brands", 10, "brand_", "BRAND" ),
+              Arrays.asList( "iphone pro", "apple" ) )
+        .build( );
+
+    assertEquals( Arrays.asList( "brand_apple", "brand_iphone_pro", "case" ),
+                  terms( dictionary, "apple iphone pro case", MultiAutoPhrasingTokenFilter.Segmentation.PRIORITY ));
+    assertEquals( Arrays.asList( "apple_iphone", "pro", "case" ),
+                  terms( dictionary, "apple iphone pro case", MultiAutoPhrasingTokenFilter.Segmentation.LEFTMOST_LONGEST ));
+  }
+
+  public void testMaxCoverage( ) throws Exception {
+    AutoPhraseDictionary dictionary = new AutoPhraseDictionary.Builder( false )
+        .add( new AutoPhraseDictionary.Source( "tax", 0, null, null ),
+              Arrays.asList( "income tax", "tax refund status", "tax refund" ) )
+        .build( );
+
+    assertEquals( Arrays.asList( "income_tax", "refund", "status" ),
+                  terms( dictionary, "income tax refund status", MultiAutoPhrasingTokenFilter.Segmentation.PRIORITY ));
+    assertEquals( Arrays.asList( "income", "tax_refund_status" ),
+                  terms( dictionary, "income tax refund status", MultiAutoPhrasingTokenFilter.Segmentation.MAX_COVERAGE ));
+    // equal coverage: the leftmost phrase wins
+    assertEquals( Arrays.asList( "income_tax", "refund" ),
+                  terms( dictionary, "income tax refund", MultiAutoPhrasingTokenFilter.Segmentation.MAX_COVERAGE ));
+  }
+
+  public void testWeighted( ) throws Exception {
+    AutoPhraseDictionary.Source source = new AutoPhraseDictionary.Source( "tax", 0, null, null );
+    AutoPhraseDictionary dictionary = new AutoPhraseDictionary.Builder( false )
+        .add( source, "income tax", 1.0f )
+        .add( source, "tax refund", 3.0f )
+        .add( source, "refund status", 1.0f )
+        .build( );
+
+    assertEquals( Arrays.asList( "income", "tax_refund", "status" ),
+                  terms( dictionary, "income tax refund status", MultiAutoPhrasingTokenFilter.Segmentation.WEIGHTED ));
+    assertEquals( Arrays.asList( "income_tax", "refund_status" ),
+                  terms( dictionary, "income tax refund status", MultiAutoPhrasingTokenFilter.Segmentation.MAX_COVERAGE ));
+    // a token in no phrase ends the window: the choice before it ignores the text after it
+    assertEquals( Arrays.asList( "income_tax", "and", "tax_refund", "status" ),
+                  terms( dictionary, "income tax and tax refund status", MultiAutoPhrasingTokenFilter.Segmentation.WEIGHTED ));
+  }
+
+  private List<String> terms( AutoPhraseDictionary dictionary, String input,
+                              MultiAutoPhrasingTokenFilter.Segmentation segmentation ) throws Exception {
+    MultiAutoPhrasingTokenFilter aptf = new MultiAutoPhrasingTokenFilter(
+        new WhitespaceTokenizer( new StringReader( input ) ), dictionary, false );
+    aptf.setReplaceWhitespaceWith( new Character( '_' ) );
+    aptf.setSegmentation( segmentation );
+    CharTermAttribute term = aptf.addAttribute( CharTermAttribute.class );
+    List<String> terms = new ArrayList<String>( );
+    aptf.reset();
+    while (aptf.incrementToken()) {
+      terms.add( term.toString());
+    }
+    aptf.end();
+    aptf.close();
+    return terms;
+  }
+}
@@ -0,0 +1,211 @@
+package com.lucidworks.analysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.analysis.util.ResourceLoader;
+
+public class TestParallelAutoPhrasingTokenFilter extends TestCase {
+
+  private static final String[] VOCABULARY = { "a", "b", "c", "d", "e", "f" };
+  // tokens that are in no phrase, i.e. chunk boundaries
+  private static final String[] OTHER = { "x", "y", "z" };
+
+  private final ForkJoinPool pool = new ForkJoinPool( 4 );
+
+  @Override
+  protected void tearDown( ) throws Exception {
+    pool.shutdown( );
+    super.tearDown( );
+  }
+
+  public void testSameOutputAsSerialFilter( ) throws Exception {
+    AutoPhraseDictionary dictionary = new AutoPhraseDictionary.Builder( false )
+        .add( new AutoPhraseDictionary.Source( "products", 0, null, null ),
+              Arrays.asList( "income tax", "new york city", "new york" ) )
+        .add( new AutoPhraseDictionary.Source( "brands", 10, "brand_", "BRAND" ),
+              Arrays.asList( "york city", "apple" ) )
+        .build( );
+
+    String input = "my income tax in new york city is high apple new york city income tax new york";
+    for (int chunkSize = 1; chunkSize < 6; chunkSize++) {
+      assertEquals( tokens( serial( dictionary, input, false )), tokens( parallel( dictionary, input, false, chunkSize )));
+      assertEquals( tokens( serial( dictionary, input, true )), tokens( parallel( dictionary, input, true, chunkSize )));
+    }
+  }
+
+  public void testRandomizedEquivalence( ) throws Exception {
+    Random random = new Random( 42 );
+    for (int round = 0; round < 200; round++) {
+      AutoPhraseDictionary dictionary = randomDictionary( random );
+      String input = randomText( random, random.nextInt( 300 ));
+      int chunkSize = 1 + random.nextInt( 8 );
+      boolean emitSingleTokens = random.nextBoolean( );
+      MultiAutoPhrasingTokenFilter.Segmentation[] policies = MultiAutoPhrasingTokenFilter.Segmentation.values( );
+      MultiAutoPhrasingTokenFilter.Segmentation segmentation = policies[ random.nextInt( policies.length ) ];
+
+      MultiAutoPhrasingTokenFilter serial = serial( dictionary, input, emitSingleTokens );
+      serial.setSegmentation( segmentation );
+      ParallelAutoPhrasingTokenFilter parallel = parallel( dictionary, input, emitSingleTokens, chunkSize );
+      parallel.setSegmentation( segmentation );
+      assertEquals( "round " + round + " " + segmentation + ": " + input, tokens( serial ), tokens( parallel ));
+    }
+  }
+
+  public void testReuse( ) throws Exception {
+    Random random = new Random( 7 );
+    AutoPhraseDictionary dictionary = randomDictionary( random );
+    String first = randomText( random, 200 );
+    String second = randomText( random, 50 );
+
+    WhitespaceTokenizer tokenizer = new WhitespaceTokenizer( new StringReader( first ));
+    ParallelAutoPhrasingTokenFilter filter = new ParallelAutoPhrasingTokenFilter( tokenizer, dictionary, false, pool, 4 );
+    filter.setReplaceWhitespaceWith( new Character( '_' ) );
+    assertEquals( tokens( serial( dictionary, first, false )), tokens( filter ));
+
+    tokenizer.setReader( new StringReader( second ));
+    assertEquals( tokens( serial( dictionary, second, false )), tokens( filter ));
+  }
+
+  public void testAutoPhrasingFactoryWithSegmentation( ) throws Exception {
+    String input = "my income tax in new york city is high apple new york city income tax new york";
+    AutoPhrasingTokenFilterFactory serialFactory = factory( null );
+    AutoPhrasingTokenFilterFactory parallelFactory = factory( "2" );
+
+    TokenStream parallel = parallelFactory.create( new WhitespaceTokenizer( new StringReader( input )));
+    assertTrue( parallel instanceof ParallelAutoPhrasingTokenFilter );
+    assertEquals( tokens( serialFactory.create( new WhitespaceTokenizer( new StringReader( input )))), tokens( parallel ));
+  }
+
+  public void testAutoPhrasingFactoryRequiresSegmentation( ) throws Exception {
+    Map<String,String> args = new HashMap<String,String>( );
+    args.put( "phrases", "autophrases.txt" );
+    args.put( "parallelChunkSize", "2" );
+    try {
+      new AutoPhrasingTokenFilterFactory( args );
+      fail( "expected IllegalArgumentException" );
+    }
+    catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private AutoPhrasingTokenFilterFactory factory( String parallelChunkSize ) throws IOException {
+    Map<String,String> args = new HashMap<String,String>( );
+    args.put( "phrases", "autophrases.txt" );
+    args.put( "replaceWhitespaceWith", "_" );
+    args.put( "segmentation", "priority" );
+    if (parallelChunkSize != null) {
+      args.put( "parallelChunkSize", parallelChunkSize );
+      args.put( "parallelThreads", "2" );
+    }
+    AutoPhrasingTokenFilterFactory factory = new AutoPhrasingTokenFilterFactory( args );
+    factory.inform( new ResourceLoader( ) {
+      @Override
+      public InputStream openResource( String resource ) throws IOException {
+        return new ByteArrayInputStream( "income tax\nnew york city\nnew york\nyork city\n".getBytes( StandardCharsets.UTF_8 ));
+      }
+
+      @Override
+      public <T> Class<? extends T> findClass( String cname, Class<T> expectedType ) {
+        throw new UnsupportedOperationException( );
+      }
+
+      @Override
+      public <T> T newInstance( String cname, Class<T> expectedType ) {
+        throw new UnsupportedOperationException( );
+      }
+    } );
+    return factory;
+  }
+
+  private AutoPhraseDictionary randomDictionary( Random random ) {
+    AutoPhraseDictionary.Builder builder = new AutoPhraseDictionary.Builder( false );
+    int sources = 1 + random.nextInt( 3 );
+    for (int s = 0; s < sources; s++) {
+      List<String> phrases = new ArrayList<String>( );
+      int count = 1 + random.nextInt( 10 );
+      for (int p = 0; p < count; p++) {
+        int length = 1 + random.nextInt( 4 );
+        StringBuilder phrase = new StringBuilder( );
+        for (int i = 0; i < length; i++) {
+          if (i > 0) phrase.append( ' ' );
+          phrase.append( VOCABULARY[ random.nextInt( VOCABULARY.length ) ] );
+        }
+        phrases.add( phrase.toString( ));
+      }
+      String prefix = random.nextBoolean( ) ? "s" + s + "_" : null;
+      String type = random.nextBoolean( ) ? "TYPE" + s : null;
+      AutoPhraseDictionary.Source source = new AutoPhraseDictionary.Source( "source" + s, random.nextInt( 3 ), prefix, type );
+      for (String phrase : phrases) {
+        builder.add( source, phrase, 1 + random.nextInt( 4 ));
+      }
+    }
+    return builder.build( );
+  }
+
+  private String randomText( Random random, int length ) {
+    StringBuilder text = new StringBuilder( );
+    for (int i = 0; i < length; i++) {
+      if (i > 0) text.append( random.nextInt( 10 ) == 0 ? "  " : " " );
+      if (random.nextInt( 5 ) == 0) {
+        text.append( OTHER[ random.nextInt( OTHER.length ) ] );
+      }
+      else {
+        text.append( VOCABULARY[ random.nextInt( VOCABULARY.length ) ] );
+      }
+    }
+    return text.toString( );
+  }
+
+  private MultiAutoPhrasingTokenFilter serial( AutoPhraseDictionary dictionary, String input, boolean emitSingleTokens ) {
+    MultiAutoPhrasingTokenFilter filter = new MultiAutoPhrasingTokenFilter(
+        new WhitespaceTokenizer( new StringReader( input ) ), dictionary, emitSingleTokens );
+    filter.setReplaceWhitespaceWith( new Character( '_' ) );
+    return filter;
+  }
+
+  private ParallelAutoPhrasingTokenFilter parallel( AutoPhraseDictionary dictionary, String input,
+                                                    boolean emitSingleTokens, int chunkSize ) {
+    ParallelAutoPhrasingTokenFilter filter = new ParallelAutoPhrasingTokenFilter(
+        new WhitespaceTokenizer( new StringReader( input ) ), dictionary, emitSingleTokens, pool, chunkSize );
+    filter.setReplaceWhitespaceWith( new Character( '_' ) );
+    return filter;
+  }
+
+  // term/type/posInc/posLen/start-end for every token, then the final offset
+  private List<String> tokens( TokenStream ts ) throws Exception {
+    CharTermAttribute term = ts.addAttribute( CharTermAttribute.class );
+    TypeAttribute type = ts.addAttribute( TypeAttribute.class );
+    OffsetAttribute offset = ts.addAttribute( OffsetAttribute.class );
+    PositionIncrementAttribute posInc = ts.addAttribute( PositionIncrementAttribute.class );
+    PositionLengthAttribute posLen = ts.addAttribute( PositionLengthAttribute.class );
+    List<String> tokens = new ArrayList<String>( );
+    ts.reset();
+    while (ts.incrementToken()) {
+      tokens.add( term + "/" + type.type() + "/" + posInc.getPositionIncrement() + "/" + posLen.getPositionLength()
+                  + "/" + offset.startOffset() + "-" + offset.endOffset() );
+    }
+    ts.end();
+    tokens.add( "end=" + offset.endOffset() );
+    ts.close();
+    return tokens;
+  }
+}